@@ -0,0 +1,72 @@
+package jaws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BroadcastBenchmark.java
+ *
+ * Fan-out of a broadcast to a number of in-memory connections.
+ * The server is bound to a free port, but never started, so no real clients take part.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000"})
+    public int connections;
+
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    private JaWS jaws;
+    private String text;
+    private ByteBuffer binary;
+
+    @Setup
+    public void setup() {
+        jaws = new JaWS(0);
+        for (int i=0; i<connections; i++) {
+            jaws.addConnection(new MemoryConnection(jaws), -1);
+        }
+
+        StringBuilder sb = new StringBuilder(messageSize);
+        for (int i=0; i<messageSize; i++) {
+            sb.append((char)('a' + i % 26));
+        }
+        text = sb.toString();
+        binary = ByteBuffer.allocate(messageSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        jaws.close();
+    }
+
+    @Benchmark
+    public void broadcastText() {
+        jaws.broadcast(text);
+    }
+
+    @Benchmark
+    public void broadcastBinary() {
+        jaws.broadcast(binary);
+    }
+}
@@ -0,0 +1,67 @@
+package jaws;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FrameBenchmark.java
+ *
+ * Packing and unmasking of single frames. Packing is measured both into a new array, and into a buffer from the BufferPool.
+ * The payload sizes cover the three length encodings: 7 bit, 16 bit and 64 bit.
+ * Parsing is in FrameParserBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+    @Param({"100", "4096", "100000"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private ByteBuffer payloadBuffer;
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        payloadBuffer = ByteBuffer.wrap(payload);
+    }
+
+    @Benchmark
+    public byte[] pack() {
+        return Frame.getDataFrame(Frame.OpCode.BINARY, payload);
+    }
+
+    @Benchmark
+    public int packPooled() {
+        // The 100000 byte payload is too large for the pool, and shows the cost of a heap buffer instead
+        PooledBuffer frame = Frame.encodeDataFrame(Frame.OpCode.BINARY, payloadBuffer);
+        int length = frame.buffer.remaining();
+        frame.release();
+        return length;
+    }
+
+    @Benchmark
+    public byte[] unmask() {
+        // Masking twice gives back the same bytes, so the payload does not drift between calls
+        Frame.unmask(payload, payload.length, 0x12345678);
+        return payload;
+    }
+}
@@ -0,0 +1,77 @@
+package jaws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FrameParserBenchmark.java
+ *
+ * Parsing of a single frame, as sent by a client (masked) and as sent by a server (unmasked).
+ * The payload sizes cover the three length encodings: 7 bit, 16 bit and 64 bit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameParserBenchmark {
+
+    @Param({"100", "4096", "100000"})
+    public int payloadSize;
+
+    @Param({"true", "false"})
+    public boolean masked;
+
+    private byte[] payload;
+    private ByteBuffer wire;
+    private FrameParser parser;
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        wire = ByteBuffer.wrap(encode(payload, masked));
+        parser = new FrameParser();
+    }
+
+    /**
+     * Encodes a frame the way a client would send it.
+     */
+    static byte[] encode(byte[] payload, boolean masked) {
+        byte[] frame = Frame.getDataFrame(Frame.OpCode.BINARY, payload);
+        if (!masked) {
+            return frame;
+        }
+        int headerLength = frame.length - payload.length;
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        byte[] out = new byte[frame.length + 4];
+        System.arraycopy(frame, 0, out, 0, headerLength);
+        out[1] |= 0x80;
+        System.arraycopy(mask, 0, out, headerLength, 4);
+        for (int i=0; i<payload.length; i++) {
+            out[headerLength + 4 + i] = (byte)(payload[i] ^ mask[i & 3]);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public Frame parse() throws IOException {
+        wire.rewind();
+        return parser.parse(wire);
+    }
+}
@@ -0,0 +1,62 @@
+package jaws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HandshakeBenchmark.java
+ *
+ * Parsing of an upgrade request, and generation of the Sec-WebSocket-Accept key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeBenchmark {
+
+    private static final byte[] REQUEST = (
+            "GET /chat HTTP/1.1\r\n"+
+            "Host: server.example.com\r\n"+
+            "Upgrade: websocket\r\n"+
+            "Connection: Upgrade\r\n"+
+            "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"+
+            "Origin: http://example.com\r\n"+
+            "Sec-WebSocket-Version: 13\r\n"+
+            "Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n"+
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private Handshake parsed;
+
+    @Setup
+    public void setup() throws IOException {
+        parsed = new Handshake();
+        parsed.feed(ByteBuffer.wrap(REQUEST));
+    }
+
+    @Benchmark
+    public Handshake parse() throws IOException {
+        Handshake h = new Handshake();
+        h.feed(ByteBuffer.wrap(REQUEST));
+        return h;
+    }
+
+    @Benchmark
+    public String acceptKey() {
+        return parsed.acceptKey();
+    }
+}
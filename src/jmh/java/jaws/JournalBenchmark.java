@@ -0,0 +1,89 @@
+package jaws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JournalBenchmark.java
+ *
+ * Appending frames to the journal, as every broadcast does when it is enabled, and reading them back as a resuming client does.
+ * The journal is kept in a temporary directory, at most 64 MB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+    private static final int READ_BATCH = 1000;
+
+    @Param({"64", "1024"})
+    public int size;
+
+    private Path directory;
+    private Journal journal;
+    private ByteBuffer frame;
+    private MemoryConnection con;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("jaws-journal-bench");
+        journal = new Journal(directory, 64 * 1024 * 1024, 0);
+        frame = ByteBuffer.wrap(Frame.getDataFrame(Frame.OpCode.BINARY, new byte[size]));
+        for (int i=0; i<READ_BATCH; i++) {
+            journal.append(null, frame);
+        }
+        con = new MemoryConnection(new JaWS(0));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        con.jaws.close();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path p : files) {
+                Files.deleteIfExists(p);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        return journal.append(null, frame);
+    }
+
+    /**
+     * Time per frame of reading the newest READ_BATCH frames.
+     */
+    @Benchmark
+    @OperationsPerInvocation(READ_BATCH)
+    public int read() {
+        Journal.Cursor cursor = journal.cursor(null, journal.lastSequence() - READ_BATCH, con);
+        int bytes = 0;
+        ByteBuffer f;
+        while((f = cursor.next()) != null) {
+            bytes += f.remaining();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,46 @@
+package jaws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MemoryConnection.java
+ *
+ * A connection without a socket, for benchmarks.
+ * Queued frames are drained right away on the calling thread, and only counted, so the cost measured is that of
+ * creating and queueing the frames, not of the network.
+ */
+class MemoryConnection extends Connection {
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final OutboundQueue.Entry[] batch = new OutboundQueue.Entry[64];
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+
+    MemoryConnection(JaWS jaws) {
+        super(jaws);
+    }
+
+    @Override
+    void scheduleFlush() {
+        if (!outbound.tryScheduleDrain()) return;
+        do {
+            int n;
+            while((n = outbound.gather(batch, gather, Integer.MAX_VALUE)) > 0) {
+                for (int i=0; i<n; i++) {
+                    bytesWritten.addAndGet(gather[i].remaining());
+                    gather[i].position(gather[i].limit());
+                }
+                outbound.written(batch, gather, n);
+            }
+        } while(outbound.drainDone());
+    }
+
+    @Override
+    void shutdown(byte[] closeFrame) {
+        outbound.failAll();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+}
@@ -0,0 +1,80 @@
+package jaws;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TopicBenchmark.java
+ *
+ * Publishing to topics, and subscribing while topics are published to, with in-memory connections.
+ * Every connection is subscribed to the same number of topics, so every topic gets <code>subscribers</code> of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TopicBenchmark {
+
+    private static final int TOPICS_PER_CONNECTION = 10;
+
+    @Param({"1000"})
+    public int topics;
+
+    @Param({"10", "300"})
+    public int subscribers;
+
+    private JaWS jaws;
+    private Connection[] connections;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup() {
+        jaws = new JaWS(0);
+        names = new String[topics];
+        for (int i=0; i<topics; i++) {
+            names[i] = "topic-"+i;
+        }
+        connections = new Connection[topics * subscribers / TOPICS_PER_CONNECTION];
+        for (int i=0; i<connections.length; i++) {
+            connections[i] = new MemoryConnection(jaws);
+            jaws.addConnection(connections[i], -1);
+            for (int t=0; t<TOPICS_PER_CONNECTION; t++) {
+                jaws.subscribe(connections[i], names[(i + t * (topics / TOPICS_PER_CONNECTION)) % topics]);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        jaws.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        jaws.publish(names[next++ % topics], "price update");
+    }
+
+    @Benchmark
+    public void subscribeAndUnsubscribe() {
+        int i = next++;
+        Connection con = connections[i % connections.length];
+        String topic = "extra-"+(i % topics);
+        jaws.subscribe(con, topic);
+        jaws.unsubscribe(con, topic);
+    }
+}
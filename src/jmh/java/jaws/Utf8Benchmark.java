@@ -0,0 +1,60 @@
+package jaws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Utf8Benchmark.java
+ *
+ * Checking a text payload, as every recieved text frame is, against decoding it to a String and encoding it again,
+ * as a handler that passes messages on used to. Payloads are plain ASCII, or text with a multi-byte character every few bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Utf8Benchmark {
+
+    @Param({"64", "4096"})
+    public int size;
+
+    @Param({"ascii", "mixed"})
+    public String text;
+
+    private byte[] payload;
+    private final Utf8Validator validator = new Utf8Validator();
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < size) {
+            sb.append(text.equals("ascii") ? "price=101.25;" : "prix=101,25\u20ac;");
+        }
+        payload = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public boolean validate() {
+        validator.reset();
+        return validator.update(payload, 0, payload.length) && validator.isComplete();
+    }
+
+    @Benchmark
+    public byte[] decodeAndEncode() {
+        return new String(payload, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,218 @@
+package jaws;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * LoadClient.java
+ *
+ * A minimal websocket client used by the LoadGenerator. It speaks raw RFC 6455 over a blocking socket,
+ * so what is measured is the server, not a client library.
+ * <p>
+ * Messages are text frames starting with a tag and the System.nanoTime() they were meant to be sent at.
+ * When one comes back, the reader thread records the time since then in the histogram.
+ * Measuring from the intended send time, and not the actual one, keeps a stalled server from hiding its own delays.
+ */
+class LoadClient {
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final Histogram latency;
+    private volatile boolean closing = false;
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private LoadClient(Socket socket, Histogram latency, int bufferSize) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+        this.latency = latency;
+    }
+
+    /**
+     * Connects and does the upgrade handshake. Returns once the server has answered.
+     * @param host The server host
+     * @param port The server port
+     * @param latency Where round trip times are recorded, in microseconds
+     * @return The connected client. Call start() to begin reading.
+     * @throws IOException If the connection or handshake fails
+     */
+    static LoadClient connect(String host, int port, Histogram latency) throws IOException {
+        return connect(host, port, latency, READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Connects with a read buffer of the given size. A small one keeps idle clients from hiding what they cost the server.
+     * @see #connect(String, int, Histogram)
+     */
+    static LoadClient connect(String host, int port, Histogram latency, int bufferSize) throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), 10000);
+        LoadClient client = new LoadClient(socket, latency, bufferSize);
+        client.handshake(host);
+        return client;
+    }
+
+    private void handshake(String host) throws IOException {
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        String request =
+            "GET / HTTP/1.1\r\n"+
+            "Host: "+host+"\r\n"+
+            "Upgrade: websocket\r\n"+
+            "Connection: Upgrade\r\n"+
+            "Sec-WebSocket-Key: "+Base64.getEncoder().encodeToString(nonce)+"\r\n"+
+            "Sec-WebSocket-Version: 13\r\n\r\n";
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+
+        String status = readLine();
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new IOException("Upgrade refused: "+status);
+        }
+        while(!readLine().isEmpty()) {
+            // Skip the headers
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while((c = in.read()) != '\n') {
+            if (c < 0) throw new EOFException("Connection closed during handshake");
+            if (c != '\r') sb.append((char)c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts the thread that reads frames from the server.
+     */
+    void start() {
+        Thread reader = new Thread(this::read, "LoadClient-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read() {
+        try {
+            while(true) {
+                int b0 = in.readUnsignedByte();
+                int b1 = in.readUnsignedByte();
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                }
+                else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] payload = new byte[(int)length];
+                in.readFully(payload);
+
+                int opcode = b0 & 0x0F;
+                if (opcode == 0x8) {
+                    break;
+                }
+                if (opcode == 0x1) {
+                    record(payload);
+                }
+            }
+        }
+        catch(IOException e) {
+            if (!closing) {
+                System.err.println("Client lost its connection: "+e.getMessage());
+            }
+        }
+        finally {
+            close();
+        }
+    }
+
+    private void record(byte[] payload) {
+        // <tag>:<nanoTime>:<padding>
+        long sent = 0;
+        for (int i=2; i<payload.length && payload[i] != ':'; i++) {
+            sent = sent * 10 + (payload[i] - '0');
+        }
+        latency.record((System.nanoTime() - sent) / 1000);
+    }
+
+    /**
+     * Sends a masked text frame.
+     * @param tag 'e' to have the message echoed, 'b' to have it broadcast
+     * @param intendedNanos The System.nanoTime() the message was scheduled for
+     * @param size The payload size in bytes, padded to fit the timestamp
+     * @throws IOException If the write fails
+     */
+    void send(char tag, long intendedNanos, int size) throws IOException {
+        byte[] head = (tag+":"+intendedNanos+":").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] payload = new byte[Math.max(size, head.length)];
+        System.arraycopy(head, 0, payload, 0, head.length);
+        for (int i=head.length; i<payload.length; i++) {
+            payload[i] = 'x';
+        }
+        writeFrame(0x1, payload);
+    }
+
+    private void writeFrame(int opcode, byte[] payload) throws IOException {
+        int length = payload.length;
+        int headerLength = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        byte[] frame = new byte[headerLength + 4 + length];
+        frame[0] = (byte)(0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte)(0x80 | length);
+        }
+        else if (length < 65536) {
+            frame[1] = (byte)(0x80 | 126);
+            frame[2] = (byte)(length >> 8);
+            frame[3] = (byte)length;
+        }
+        else {
+            frame[1] = (byte)(0x80 | 127);
+            for (int i=0; i<8; i++) {
+                frame[2+i] = (byte)((long)length >>> (56 - 8*i));
+            }
+        }
+
+        int mask = ThreadLocalRandom.current().nextInt();
+        for (int i=0; i<4; i++) {
+            frame[headerLength+i] = (byte)(mask >>> (24 - 8*i));
+        }
+        for (int i=0; i<length; i++) {
+            frame[headerLength+4+i] = (byte)(payload[i] ^ frame[headerLength + (i & 3)]);
+        }
+
+        synchronized(out) {
+            out.write(frame);
+        }
+    }
+
+    /**
+     * Sends a close frame, and closes the socket.
+     */
+    void close() {
+        if (closing) return;
+        closing = true;
+        try {
+            writeFrame(0x8, new byte[0]);
+        }
+        catch(IOException ignored) {
+            // Closing anyway
+        }
+        try {
+            socket.close();
+        }
+        catch(IOException ignored) {
+            // Nothing more to do
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package jaws;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator.java
+ *
+ * Drives a local JaWS server with many real websocket connections over loopback, and reports what the clients saw.
+ * This covers the whole path through the engine, from the socket to the event handler and back, which the JMH benchmarks do not.
+ * <p>
+ * Modes:
+ * <ul>
+ * <li>echo: every connection sends messages that the server sends back. Reports round trip latency.</li>
+ * <li>broadcast: one connection sends messages that the server broadcasts to all. Reports the latency seen by every reciever.</li>
+ * <li>connect: opens all connections as fast as possible, and reports completed handshakes per second.</li>
+ * <li>idle: opens all connections, leaves them idle, and reports the heap, resident memory and threads each one costs.
+ * Compares the engines for many connections that seldom send, such as THREAD_PER_CONNECTION and VIRTUAL_THREAD_PER_CONNECTION.
+ * The clients run in the same process, with small buffers, so only makes sense for a local server.</li>
+ * </ul>
+ * Arguments are given as key=value, for example: <code>mode=echo engine=NIO connections=1000 rate=20000 duration=30</code>.
+ * With <code>host=</code> set, no local server is started, and an already running server is tested instead.
+ * The NIO engine can be sharded with <code>loops=</code>, <code>acceptors=</code> and <code>assignment=roundrobin|least</code>.
+ * <code>linger=</code> sets the write linger of the server, in microseconds.
+ * <code>nodes=</code> starts several servers, on consecutive ports, linked by their relays. The clients are spread over them, so
+ * a broadcast reaches most clients through another server.
+ */
+public class LoadGenerator implements WebSocketEventHandler {
+
+    private static final int IDLE_BUFFER_SIZE = 256;
+
+    private final JaWS jaws;
+
+    private LoadGenerator(JaWS jaws) {
+        this.jaws = jaws;
+    }
+
+    @Override
+    public void onConnect(Connection con) {
+    }
+
+    @Override
+    public void onMessage(Connection con, String message) {
+    }
+
+    @Override
+    public void onTextMessage(Connection con, ByteBuffer message) {
+        // Passed on as the bytes recieved, never decoded
+        if (message.get(message.position()) == 'b') {
+            jaws.broadcastText(message);
+        }
+        else {
+            con.sendText(message);
+        }
+    }
+
+    @Override
+    public void onDisconnect(Connection con) {
+    }
+
+    @Override
+    public void onPong(Connection con) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Arguments must be key=value, got: "+arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq+1));
+        }
+
+        String mode = options.getOrDefault("mode", "echo");
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "40506"));
+        int connections = Integer.parseInt(options.getOrDefault("connections", "100"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "10000"));
+        int size = Integer.parseInt(options.getOrDefault("size", "64"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+
+        int nodes = Integer.parseInt(options.getOrDefault("nodes", "1"));
+        List<JaWS> servers = new ArrayList<JaWS>();
+        if (!options.containsKey("host")) {
+            JaWS.Engine engine = JaWS.Engine.valueOf(options.getOrDefault("engine", "THREAD_PER_CONNECTION"));
+            int loops = Integer.parseInt(options.getOrDefault("loops", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            int acceptors = Integer.parseInt(options.getOrDefault("acceptors", "1"));
+            for (int i=0; i<nodes; i++) {
+                JaWS jaws = new JaWS(port + i, engine, loops, acceptors);
+                if (options.getOrDefault("assignment", "roundrobin").equals("least")) {
+                    jaws.setLoopAssignment(LoopAssignment.leastConnections());
+                }
+                jaws.setWriteLinger(Integer.parseInt(options.getOrDefault("linger", "0")));
+                jaws.setEventHandler(new LoadGenerator(jaws));
+                if (nodes > 1) {
+                    jaws.enableRelay(0);
+                }
+                jaws.start();
+                servers.add(jaws);
+            }
+            // Every server is given all the others, as in a real cluster. The relays keep one link for each pair.
+            for (JaWS jaws : servers) {
+                for (JaWS peer : servers) {
+                    if (peer != jaws) {
+                        jaws.addRelayPeer("localhost", peer.getRelayPort());
+                    }
+                }
+            }
+            engine = servers.get(0).getEngine(); // Virtual threads may not be supported
+            System.out.println("Started "+nodes+" JaWS on port "+port+" with engine "+engine+
+                    (engine == JaWS.Engine.NIO ? ", "+loops+" loops and "+acceptors+" acceptors" : ""));
+            Thread.sleep(nodes > 1 ? 1000 : 200);
+        }
+        else {
+            nodes = 1;
+        }
+
+        Histogram latency = new Histogram();
+        boolean idle = mode.equals("idle");
+        long[] before = idle ? footprint() : null;
+        List<LoadClient> clients = connectAll(host, port, nodes, connections, latency, idle ? IDLE_BUFFER_SIZE : LoadClient.READ_BUFFER_SIZE);
+
+        if (mode.equals("echo") || mode.equals("broadcast")) {
+            for (LoadClient c : clients) {
+                c.start();
+            }
+            List<LoadClient> senders = mode.equals("echo") ? clients : clients.subList(0, 1);
+            char tag = mode.equals("echo") ? 'e' : 'b';
+
+            System.out.println("Warming up for "+warmup+"s");
+            run(senders, tag, rate, size, warmup);
+            Thread.sleep(500); // Do not count answers to the warmup messages
+            latency.reset();
+
+            System.out.println("Running "+mode+" at "+rate+" msg/s for "+duration+"s");
+            long sent = run(senders, tag, rate, size, duration);
+            Thread.sleep(1000); // Let the last messages arrive
+
+            System.out.println(String.format("%s: %d connections, %d messages sent (%.0f msg/s), %d recieved",
+                    mode, connections, sent, sent / (double)duration, latency.count()));
+            System.out.println(String.format("latency (us): p50=%d p99=%d p999=%d max=%d",
+                    latency.percentile(50), latency.percentile(99), latency.percentile(99.9), latency.max()));
+            for (JaWS jaws : servers) {
+                MetricsSnapshot m = jaws.getMetrics();
+                System.out.println(String.format("server: %d frames in %d socket writes", m.getFramesOut(), m.getSocketWrites()));
+                if (nodes > 1) {
+                    System.out.println("relay: "+m.getRelay());
+                }
+            }
+        }
+        else if (idle) {
+            Thread.sleep(2000); // Let every reader settle into waiting
+            long[] after = footprint();
+            double n = Math.max(1, clients.size());
+            System.out.println(String.format("idle: per connection %.1f KB heap, %s resident, %.2f threads",
+                    (after[0] - before[0]) / n / 1024,
+                    before[1] < 0 ? "unknown" : String.format("%.1f KB", (after[1] - before[1]) / n / 1024),
+                    (after[2] - before[2]) / n));
+        }
+        else if (!mode.equals("connect")) {
+            System.err.println("Unknown mode: "+mode);
+        }
+
+        for (LoadClient c : clients) {
+            c.close();
+        }
+        for (JaWS jaws : servers) {
+            jaws.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Opens the connections from a few threads at once, and reports the connect rate.
+     * The connections are spread round robin over the servers on <code>nodes</code> ports from <code>port</code>.
+     */
+    private static List<LoadClient> connectAll(String host, int port, int nodes, int connections, Histogram latency, int bufferSize) throws Exception {
+        int threads = Math.min(connections, 8);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Histogram connectTime = new Histogram();
+        List<Future<LoadClient>> futures = new ArrayList<Future<LoadClient>>();
+
+        long start = System.nanoTime();
+        for (int i=0; i<connections; i++) {
+            int nodePort = port + i % nodes;
+            futures.add(pool.submit(() -> {
+                long t = System.nanoTime();
+                LoadClient c = LoadClient.connect(host, nodePort, latency, bufferSize);
+                connectTime.record((System.nanoTime() - t) / 1000);
+                return c;
+            }));
+        }
+        List<LoadClient> clients = new ArrayList<LoadClient>();
+        int failed = 0;
+        for (Future<LoadClient> f : futures) {
+            try {
+                clients.add(f.get());
+            }
+            catch(Exception e) {
+                failed++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        System.out.println(String.format("connect: %d connections in %.2fs (%.0f/s), %d failed",
+                clients.size(), seconds, clients.size() / seconds, failed));
+        System.out.println(String.format("handshake (us): p50=%d p99=%d p999=%d max=%d",
+                connectTime.percentile(50), connectTime.percentile(99), connectTime.percentile(99.9), connectTime.max()));
+        return clients;
+    }
+
+    /**
+     * Measures the process after a few garbage collections, for the idle mode.
+     * Platform threads keep their stacks outside the heap, so the resident set size is read too, where Linux gives it.
+     * @return The heap used, the resident set size or -1 if unknown, and the number of live platform threads
+     */
+    private static long[] footprint() throws InterruptedException {
+        for (int i=0; i<3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long resident = -1;
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    resident = Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        }
+        catch(IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return new long[]{heap, resident, ManagementFactory.getThreadMXBean().getThreadCount()};
+    }
+
+    /**
+     * Sends messages at a fixed total rate, spread over the senders, from a few threads.
+     * Every thread follows its own schedule, so a thread that falls behind sends at once to catch up.
+     * @return The number of messages sent
+     */
+    private static long run(List<LoadClient> senders, char tag, int rate, int size, int seconds) throws InterruptedException {
+        int threads = Math.min(senders.size(), Math.max(1, Runtime.getRuntime().availableProcessors()));
+        long interval = TimeUnit.SECONDS.toNanos(1) * threads / Math.max(1, rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong sent = new AtomicLong();
+
+        Thread[] workers = new Thread[threads];
+        for (int t=0; t<threads; t++) {
+            int first = t;
+            workers[t] = new Thread(() -> {
+                long next = start + interval * first / threads; // Spread the threads over the interval
+                int i = first;
+                while(next < end) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    try {
+                        senders.get(i).send(tag, next, size);
+                        sent.incrementAndGet();
+                    }
+                    catch(IOException e) {
+                        // The reader reports the lost connection
+                    }
+                    i += threads;
+                    if (i >= senders.size()) {
+                        i = first;
+                    }
+                    next += interval;
+                }
+            }, "LoadGenerator-sender");
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        return sent.get();
+    }
+}
@@ -0,0 +1,35 @@
+package jaws;
+
+/**
+ * BackpressurePolicy.java
+ *
+ * What a connection does with a new message when the bytes waiting to be written to the client have reached the high watermark.
+ * Set with JaWS.setBackpressurePolicy(). Control frames and fragments of streamed messages are never dropped,
+ * as streams already wait for each fragment to be written before sending the next. Neither are messages compressed with a context
+ * kept between messages, as the client needs every one of them to inflate the next. The policy is applied to those before compressing.
+ */
+public enum BackpressurePolicy {
+    /**
+     * The sending thread waits until the queue is drained to the low watermark, or the connection is closed.
+     * Sends from a selector thread of the NIO engine are never blocked, and are dropped instead.
+     * Note that a broadcast waits for the slowest client.
+     */
+    BLOCK,
+    /**
+     * The new message is dropped, and its future fails.
+     */
+    DROP_NEWEST,
+    /**
+     * Queued messages that the writer has not started on are dropped, oldest first, until the queue is below the high watermark.
+     */
+    DROP_OLDEST,
+    /**
+     * A message sent with a conflation key replaces the queued message with the same key, if the writer has not started on it.
+     * Only the latest value for each key is then sent. Messages without a key, or with no queued message to replace, are dropped.
+     */
+    CONFLATE,
+    /**
+     * Queued messages are dropped, and the connection is closed with status 1008 (policy violation).
+     */
+    DISCONNECT
+}
@@ -0,0 +1,188 @@
+package jaws;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BlockingConnection.java
+ *
+ * The connection used by JaWS.Engine.THREAD_PER_CONNECTION and JaWS.Engine.VIRTUAL_THREAD_PER_CONNECTION.
+ * Every connection gets a thread for reading, a virtual one with the latter. Writing is done by a task on the server's writer pool, started when frames are queued
+ * and there is no task already draining this connection's queue.
+ * The writer takes the queued frames in batches, and writes each batch with a single gathering write to the socket's channel.
+ *
+ */
+class BlockingConnection extends Connection {
+
+    final Socket socket;
+    private final InputStream input;
+    private final WritableByteChannel output;
+    private final GatheringByteChannel gatheringOutput; // The socket's channel, or null if it has none
+
+    // Only used by the writer
+    private final OutboundQueue.Entry[] batch = new OutboundQueue.Entry[MAX_GATHER];
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    private final Thread reader;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // Reused for every read
+
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_GATHER = 64; // Frames in one write
+    private static final int MAX_GATHER_BYTES = 256 * 1024;
+    private static final int LINGER_MAX_BYTES = 64 * 1024; // Stop waiting for more frames once this many are queued
+
+    /**
+     * @param jaws The server
+     * @param socket The socket, after the handshake
+     * @param pending Bytes read together with the handshake, that belong to the first frames. May be empty.
+     */
+    BlockingConnection(JaWS jaws, Socket socket, ByteBuffer pending) throws IOException {
+        super(jaws);
+        this.socket = socket;
+        countIn(pending.remaining());
+        readBuffer.put(pending);
+        readBuffer.flip();
+
+        input = socket.getInputStream();
+        gatheringOutput = socket.getChannel();
+        output = gatheringOutput != null ? gatheringOutput : Channels.newChannel(socket.getOutputStream());
+
+        reader = jaws.getReaderThreads().newThread(this::read);
+    }
+
+    /**
+     * Starts the thread reading from the client.
+     */
+    void start() {
+        reader.start();
+    }
+
+    private void read() {
+        while(!isClosed()) {
+            try {
+                if (!readBuffer.hasRemaining()) {
+                    int n = input.read(readBuffer.array(), 0, readBuffer.capacity());
+                    if (n < 0) {
+                        // The client went away without a closing handshake
+                        this.close(null);
+                        break;
+                    }
+                    countIn(n);
+                    readBuffer.limit(n);
+                    readBuffer.position(0);
+                }
+
+                Frame f;
+                while(!isClosed() && (f = parser.parse(readBuffer)) != null) {
+                    onFrame(f);
+                }
+            }
+            catch(CloseException e) {
+                // The client broke the protocol or a limit
+                this.close(e.code, e.getMessage());
+            }
+            catch(IOException e) {
+                if(!socket.isClosed()) {
+                    e.printStackTrace();
+                    this.close("Internal server error");
+                }
+                // else ignore. The connection is closed. All is well
+            }
+        }
+    }
+
+    @Override
+    void scheduleFlush() {
+        if (outbound.tryScheduleDrain()) {
+            jaws.getWorkerPool().execute(this::drain);
+        }
+    }
+
+    /**
+     * Writes queued frames until the queue is empty. Only one drain runs at a time for a connection.
+     */
+    private void drain() {
+        do {
+            linger();
+            int n;
+            while((n = outbound.gather(batch, gather, MAX_GATHER_BYTES)) > 0) {
+                try {
+                    write(n);
+                    outbound.written(batch, gather, n);
+                }
+                catch(IOException ex) {
+                    outbound.written(batch, gather, n);
+                    outbound.failAll();
+                    if (!socket.isClosed()) {
+                        this.close(null);
+                    }
+                }
+            }
+        } while(outbound.drainDone());
+    }
+
+    private void write(int n) throws IOException {
+        if (gatheringOutput != null) {
+            while(gather[n-1].hasRemaining()) {
+                gatheringOutput.write(gather, 0, n);
+                jaws.metrics.socketWrites.increment();
+            }
+            return;
+        }
+        for (int i=0; i<n; i++) {
+            while(gather[i].hasRemaining()) {
+                output.write(gather[i]);
+                jaws.metrics.socketWrites.increment();
+            }
+        }
+    }
+
+    /**
+     * Waits out the write linger, if one is set, so frames queued meanwhile are written together.
+     */
+    private void linger() {
+        long linger = jaws.getWriteLinger() * 1000L;
+        if (linger == 0) return;
+        long deadline = System.nanoTime() + linger;
+        long left;
+        while(outbound.bytes() < LINGER_MAX_BYTES && (left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(Math.min(left, 50000L)); // Checks now and then if enough bytes are queued to stop waiting
+        }
+    }
+
+    /**
+     * The close frame is queued behind frames already sent, and we wait a short while for it to be written.
+     * This sending is not asynchronous, so the socket is not closed before the close frame is either sent, the wait times out,
+     * or an exception is thrown.
+     */
+    @Override
+    void shutdown(byte[] closeFrame) {
+        try {
+            if(closeFrame != null){
+                try{
+                    writeControl(closeFrame).get(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+                catch(Exception e){
+                    // AH...we tried
+                }
+            }
+            input.close();
+            output.close();
+            socket.close();
+
+            reader.interrupt();
+            outbound.failAll();
+        }
+        catch(IOException e) {
+            Logger.logErr("Exception thrown while closing connection!", Logger.WS_IO);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package jaws;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPool.java
+ *
+ * Direct buffers for outgoing frames, shared by every server in the JVM.
+ * A frame is packed straight into a direct buffer, so the socket writes from it without the copy the JDK makes of heap buffers,
+ * and without garbage: the buffer goes back to the pool once it is written.
+ * <p>
+ * Buffers come in size classes, powers of two from 256 bytes to 64KB, and a frame gets the smallest class it fits in.
+ * Larger frames are put in plain heap buffers, as before. Every thread keeps a small cache of each class, so a thread that
+ * sends and a thread that writes mostly trade buffers without locking. A cache that runs dry takes a batch from the shared arena
+ * of the class, and a full one gives half of its buffers back. The arena carves new buffers out of 1MB chunks of direct memory.
+ * Virtual threads have no cache, and borrow from and give back to the arenas directly. There may be one for every task, and
+ * the buffers cached by a thread that ends are lost to the pool.
+ * <p>
+ * With <code>-Djaws.bufferPool.leakDetection=true</code> every borrowed buffer is tracked, and one that is garbage collected
+ * without being released is reported with the stack trace of where it was borrowed. This costs an allocation per buffer,
+ * so it is meant for testing. <code>-Djaws.bufferPool.maxBytes</code> limits the idle bytes kept in the arenas, 64MB by default.
+ */
+final class BufferPool {
+
+    static final int MIN_SIZE = 256;
+    static final int MAX_SIZE = 64 * 1024;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int CACHE_BYTES = 256 * 1024; // The most a thread keeps of a single size class
+    private static final int MAX_CACHED = 64; // The most buffers a thread keeps of a single size class
+    private static final long MAX_ARENA_BYTES = Long.getLong("jaws.bufferPool.maxBytes", 64L * 1024 * 1024);
+
+    static final boolean LEAK_DETECTION = Boolean.getBoolean("jaws.bufferPool.leakDetection");
+
+    private static final Arena[] arenas = new Arena[CLASSES];
+    private static final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+    private static final MethodHandle isVirtual = isVirtualHandle(); // Thread.isVirtual(), or null before Java 21
+
+    private static final LongAdder borrowed = new LongAdder();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder chunks = new LongAdder();
+    private static final LongAdder directBytes = new LongAdder();
+    private static final LongAdder unpooled = new LongAdder();
+    private static final LongAdder discarded = new LongAdder();
+    private static final LongAdder leaks = new LongAdder();
+
+    private static final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<PooledBuffer>();
+    private static final Set<LeakTracker> tracked = ConcurrentHashMap.newKeySet();
+
+    static {
+        for (int i=0; i<CLASSES; i++) {
+            int size = MIN_SIZE << i;
+            arenas[i] = new Arena(size, (int)Math.max(CHUNK_SIZE / size, MAX_ARENA_BYTES / CLASSES / size));
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * Borrows a buffer. Its position is 0 and its limit is the requested size. It must be released when it is no longer used.
+     * @param size The number of bytes needed
+     * @return The buffer, with a single reference
+     */
+    static PooledBuffer acquire(int size) {
+        borrowed.increment();
+        int c = sizeClass(size);
+        if (c < 0) {
+            unpooled.increment();
+            PooledBuffer p = new PooledBuffer(ByteBuffer.allocate(size), -1);
+            p.borrowed();
+            return p;
+        }
+
+        Cache cache = cache();
+        PooledBuffer p;
+        if (cache == null) {
+            p = arenas[c].take();
+            if (p == null) {
+                p = refill(null, c);
+            }
+        }
+        else if ((p = cache.take(c)) != null) {
+            cacheHits.increment();
+        }
+        else {
+            p = refill(cache, c);
+        }
+        p.borrowed();
+        p.buffer.clear();
+        p.buffer.limit(size);
+        if (LEAK_DETECTION) {
+            track(p);
+        }
+        return p;
+    }
+
+    /**
+     * @return The size class for a number of bytes, or -1 if it is too large to pool
+     */
+    static int sizeClass(int size) {
+        if (size > MAX_SIZE) return -1;
+        if (size <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * @return The cache of the current thread, or null if it is a virtual thread
+     */
+    private static Cache cache() {
+        if (isVirtual != null) {
+            try {
+                if ((boolean)isVirtual.invokeExact(Thread.currentThread())) {
+                    return null;
+                }
+            }
+            catch(Throwable e) {
+                // Can not happen, isVirtual() throws nothing
+            }
+        }
+        return caches.get();
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        }
+        catch(ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fills an empty cache from the arena, or from a new chunk if the arena is empty too.
+     * @param cache The cache, or null to put the new chunk in the arena
+     * @return A buffer that is not in the cache
+     */
+    private static PooledBuffer refill(Cache cache, int c) {
+        Arena arena = arenas[c];
+        if (cache == null || arena.take(cache, c, cache.capacity(c) / 2 + 1) == 0) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, arena.size));
+            chunks.increment();
+            directBytes.add(chunk.capacity());
+            int n = chunk.capacity() / arena.size;
+            PooledBuffer[] carved = new PooledBuffer[n];
+            for (int i=0; i<n; i++) {
+                chunk.limit((i + 1) * arena.size);
+                chunk.position(i * arena.size);
+                carved[i] = new PooledBuffer(chunk.slice(), c);
+            }
+            if (cache == null) {
+                arena.put(carved, 1, n);
+                return carved[0];
+            }
+            int kept = 0;
+            while(kept < n && cache.put(c, carved[kept])) {
+                kept++;
+            }
+            arena.put(carved, kept, n);
+        }
+        return cache.take(c);
+    }
+
+    /**
+     * Called by PooledBuffer when its last reference is released.
+     * @param p The buffer
+     * @param discard true if it must not be lent out again
+     */
+    static void giveBack(PooledBuffer p, boolean discard) {
+        if (p.sizeClass < 0) return;
+        if (LEAK_DETECTION) {
+            untrack(p);
+        }
+        if (discard) {
+            discarded.increment();
+            return;
+        }
+        Cache cache = cache();
+        if (cache == null) {
+            arenas[p.sizeClass].put(p);
+        }
+        else if (!cache.put(p.sizeClass, p)) {
+            cache.spill(arenas[p.sizeClass], p.sizeClass);
+            cache.put(p.sizeClass, p);
+        }
+    }
+
+    /**
+     * @return The statistics of the pool as they are now
+     */
+    static BufferPoolMetrics metrics() {
+        long idle = 0;
+        for (Arena arena : arenas) {
+            idle += arena.idleBytes();
+        }
+        return new BufferPoolMetrics(borrowed.sum(), cacheHits.sum(), chunks.sum(), directBytes.sum(), idle,
+                unpooled.sum(), discarded.sum(), leaks.sum());
+    }
+
+    /*
+     * Leak detection. A tracker is a phantom reference to a borrowed buffer. Releasing the buffer drops its tracker,
+     * so a tracker that is still known when the garbage collector enqueues it belongs to a buffer that was lost.
+     */
+
+    static final class LeakTracker extends PhantomReference<PooledBuffer> {
+        final Throwable borrowedAt = new Throwable("Pooled buffer borrowed here");
+
+        LeakTracker(PooledBuffer p) {
+            super(p, collected);
+        }
+    }
+
+    private static void track(PooledBuffer p) {
+        reportLeaks();
+        LeakTracker t = new LeakTracker(p);
+        tracked.add(t);
+        p.tracker = t;
+    }
+
+    private static void untrack(PooledBuffer p) {
+        LeakTracker t = p.tracker;
+        if (t != null) {
+            p.tracker = null;
+            tracked.remove(t);
+            t.clear();
+        }
+    }
+
+    private static void reportLeaks() {
+        LeakTracker t;
+        while((t = (LeakTracker)collected.poll()) != null) {
+            if (tracked.remove(t)) {
+                leaks.increment();
+                Logger.logErr("A pooled buffer was garbage collected without being released", Logger.GENERAL);
+                t.borrowedAt.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The buffers of one size class that no thread has cached. Guarded by itself.
+     */
+    private static final class Arena {
+        final int size;
+        private final PooledBuffer[] stack;
+        private int count = 0;
+
+        Arena(int size, int capacity) {
+            this.size = size;
+            this.stack = new PooledBuffer[capacity];
+        }
+
+        /**
+         * Moves up to <code>max</code> buffers into a cache.
+         * @return The number of buffers moved
+         */
+        synchronized int take(Cache cache, int c, int max) {
+            int moved = 0;
+            while(moved < max && count > 0 && cache.put(c, stack[count-1])) {
+                stack[--count] = null;
+                moved++;
+            }
+            return moved;
+        }
+
+        /**
+         * @return A buffer, or null if the arena is empty
+         */
+        synchronized PooledBuffer take() {
+            if (count == 0) return null;
+            PooledBuffer p = stack[--count];
+            stack[count] = null;
+            return p;
+        }
+
+        /**
+         * Adds a buffer, unless the arena is full and it is left to the garbage collector.
+         */
+        synchronized void put(PooledBuffer p) {
+            if (count < stack.length) {
+                stack[count++] = p;
+            }
+        }
+
+        /**
+         * Adds buffers. Those that do not fit are left to the garbage collector.
+         */
+        synchronized void put(PooledBuffer[] buffers, int from, int to) {
+            for (int i=from; i<to && count < stack.length; i++) {
+                stack[count++] = buffers[i];
+            }
+        }
+
+        synchronized long idleBytes() {
+            return (long)count * size;
+        }
+    }
+
+    /**
+     * The buffers a single thread keeps of each size class. Only used by its own thread.
+     */
+    private static final class Cache {
+        private final PooledBuffer[][] stacks = new PooledBuffer[CLASSES][];
+        private final int[] counts = new int[CLASSES];
+
+        Cache() {
+            for (int i=0; i<CLASSES; i++) {
+                stacks[i] = new PooledBuffer[Math.max(2, Math.min(MAX_CACHED, CACHE_BYTES / (MIN_SIZE << i)))];
+            }
+        }
+
+        int capacity(int c) {
+            return stacks[c].length;
+        }
+
+        PooledBuffer take(int c) {
+            if (counts[c] == 0) return null;
+            PooledBuffer p = stacks[c][--counts[c]];
+            stacks[c][counts[c]] = null;
+            return p;
+        }
+
+        boolean put(int c, PooledBuffer p) {
+            if (counts[c] == stacks[c].length) return false;
+            stacks[c][counts[c]++] = p;
+            return true;
+        }
+
+        /**
+         * Gives the older half of the cached buffers of a class to the arena.
+         */
+        void spill(Arena arena, int c) {
+            int half = counts[c] / 2;
+            arena.put(stacks[c], 0, half);
+            System.arraycopy(stacks[c], half, stacks[c], 0, counts[c] - half);
+            for (int i=counts[c]-half; i<counts[c]; i++) {
+                stacks[c][i] = null;
+            }
+            counts[c] -= half;
+        }
+    }
+}
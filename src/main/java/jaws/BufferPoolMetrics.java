@@ -0,0 +1,93 @@
+package jaws;
+
+/**
+ * BufferPoolMetrics.java
+ *
+ * The statistics of the pool of direct buffers that outgoing frames are packed into, at one point in time.
+ * The pool is shared by every server in the JVM, so so are these numbers.
+ */
+public final class BufferPoolMetrics {
+
+    private final long borrowed;
+    private final long cacheHits;
+    private final long chunks;
+    private final long directBytes;
+    private final long idleBytes;
+    private final long unpooled;
+    private final long discarded;
+    private final long leaks;
+
+    BufferPoolMetrics(long borrowed, long cacheHits, long chunks, long directBytes, long idleBytes,
+            long unpooled, long discarded, long leaks) {
+        this.borrowed = borrowed;
+        this.cacheHits = cacheHits;
+        this.chunks = chunks;
+        this.directBytes = directBytes;
+        this.idleBytes = idleBytes;
+        this.unpooled = unpooled;
+        this.discarded = discarded;
+        this.leaks = leaks;
+    }
+
+    /**
+     * @return The number of buffers handed out
+     */
+    public long getBorrowed() {
+        return borrowed;
+    }
+
+    /**
+     * @return The number of buffers handed out from the cache of the borrowing thread, without touching the shared arenas
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return The number of 1MB chunks of direct memory allocated. It stops growing once the pool has warmed up.
+     */
+    public long getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return The bytes of direct memory allocated by the pool
+     */
+    public long getDirectBytes() {
+        return directBytes;
+    }
+
+    /**
+     * @return The bytes in the shared arenas, not counting what threads have cached
+     */
+    public long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * @return The number of frames too large for the pool, that were put in heap buffers
+     */
+    public long getUnpooled() {
+        return unpooled;
+    }
+
+    /**
+     * @return The number of buffers not reused, as a writer may still have been reading them when their connection failed
+     */
+    public long getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * @return The number of buffers garbage collected without being released. Only counted with leak detection on.
+     */
+    public long getLeaks() {
+        return leaks;
+    }
+
+    @Override
+    public String toString() {
+        return "borrowed="+borrowed+" cacheHits="+cacheHits+" chunks="+chunks+" directBytes="+directBytes+" idleBytes="+idleBytes+
+            " unpooled="+unpooled+" discarded="+discarded+" leaks="+leaks;
+    }
+}
@@ -0,0 +1,29 @@
+package jaws;
+
+import java.io.IOException;
+
+/**
+ * CloseException.java
+ *
+ * Thrown when the client breaks the protocol or a limit, and the connection must be closed with a given status code.
+ * The message is sent to the client as the reason.
+ */
+class CloseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int PROTOCOL_ERROR = 1002;
+    static final int INVALID_PAYLOAD = 1007;
+    static final int MESSAGE_TOO_BIG = 1009;
+
+    final int code;
+
+    /**
+     * @param code The status code, see RFC 6455 7.4
+     * @param reason The reason, sent to the client
+     */
+    CloseException(int code, String reason) {
+        super(reason);
+        this.code = code;
+    }
+}
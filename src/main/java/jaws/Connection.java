@@ -1,10 +1,23 @@
 package jaws;
 
-import java.io.*;
-import java.net.*;
-import java.util.Base64;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Connection.java
@@ -13,154 +26,1047 @@ import java.util.LinkedList;
  *
  * This class will handle a connection to a single client.
  * Messages recieved from the client is sent to the WebSocketEventHandler registered in the JaWS-object responsible for this class.
+ * How bytes are moved to and from the client depends on the engine the JaWS-object was created with, see JaWS.Engine.
+ * Frames sent to the client are put in an OutboundQueue, and written in order by a single writer chosen by the engine.
  *
  */
-public class Connection extends Thread {
+public abstract class Connection {
 
-    final Socket socket;
-    private final DataInputStream input;
-    private final DataOutputStream output;
+    private static final int SPILL_CHUNK_SIZE = 64 * 1024;
 
-    final Base64.Decoder b64decoder = Base64.getDecoder();
     final JaWS jaws;
 
-    private volatile StringBuilder stringBuilder; // For assembeling fragmented messages
+    final OutboundQueue outbound;
 
-    Connection(JaWS jaws, Socket socket) throws IOException {
-        this.jaws = jaws;
-        this.socket = socket;
+    final FrameParser parser;
+
+    final Mailbox mailbox;
+
+    int registryIndex = -1; // The place of the connection in the ConnectionRegistry of its shard. Guarded by the registry.
+
+    final Set<String> topics = ConcurrentHashMap.newKeySet(); // The topics the connection is subscribed to. Changed by Topics only.
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean slowConsumer = new AtomicBoolean(false); // Set by the first sender to disconnect the client
+
+    // Senders waiting for the queue to drain, with the BLOCK policy. Not a monitor, so a virtual thread waiting here lets go of its carrier.
+    private final ReentrantLock writableLock = new ReentrantLock();
+    private final Condition writableChanged = writableLock.newCondition();
+
+    volatile PerMessageDeflate deflate; // null unless the client agreed to compression during the handshake
+    private boolean inflating; // true while recieving the frames of a compressed message
+
+    // The message being recieved. Only used by the thread reading from the client.
+    private boolean inMessage; // true from the first frame of a message until the last
+    private boolean messageBinary;
+    private long messageLength; // Bytes recieved so far, after decompression
+    private ArrayList<byte[]> fragments; // For assembeling fragmented messages, or null
+    private final Utf8Validator utf8 = new Utf8Validator(); // Checks text messages as their frames arrive
+    private volatile SpillFile spill; // Holds a large binary message instead of fragments, or null. Closed by whoever closes the connection.
+
+    private final boolean streamingIn; // true if the event handler takes messages in chunks
+
+    // Data frames sent while a stream is being sent, and streams waiting for their turn. Guarded by itself.
+    private final ArrayDeque<Runnable> deferred = new ArrayDeque<Runnable>(); // Guarded by deferredLock
+    private boolean streamingOut = false; // Guarded by deferredLock
+    // Not a monitor, as senders may wait for a slow client while holding it, see admit(). A virtual thread waiting in a monitor
+    // keeps its carrier thread.
+    private final ReentrantLock deferredLock = new ReentrantLock();
+
+    // Messages from the journal below these sequence numbers are skipped when sent live, as the journal sends them instead
+    private volatile long liveFrom = 0; // For broadcasts
+    private final ConcurrentHashMap<String, Long> topicsLiveFrom = new ConcurrentHashMap<String, Long>();
+    private volatile boolean resumed = false;
 
-        input = new DataInputStream(socket.getInputStream());
-        output = new DataOutputStream(socket.getOutputStream());
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private volatile long pingSentAt = 0; // System.nanoTime() of the oldest unanswered ping, or 0
+    private volatile long lastPingSent = 0; // System.nanoTime() of the newest ping
+    private volatile long pingRoundTrip = -1; // Microseconds
+    private volatile int missedPongs = 0; // Keepalive pings in a row that were not answered before the next one
+    private volatile long lastRecieved = System.nanoTime(); // When the client last sent anything but a pong
+
+    Connection(JaWS jaws) {
+        this.jaws = jaws;
+        this.outbound = new OutboundQueue(jaws.getMaxQueuedFrames(), jaws.getLowWatermark(), jaws.getHighWatermark(), this::writabilityChanged);
+        this.mailbox = jaws.newMailbox();
+        this.streamingIn = jaws.isStreaming();
+        if (streamingIn) {
+            this.parser = new FrameParser(jaws.getStreamingChunkSize(), jaws.getStreamingChunkSize(), jaws.getMaxFrameSize());
+        }
+        else if (jaws.getSpillThreshold() > 0) {
+            // Large frames are read in chunks, so they can be spilled without being held whole
+            this.parser = new FrameParser(SPILL_CHUNK_SIZE, jaws.getSpillThreshold(), jaws.getMaxFrameSize());
+        }
+        else {
+            this.parser = new FrameParser(Integer.MAX_VALUE, Long.MAX_VALUE, jaws.getMaxFrameSize());
+        }
     }
 
-    @Override
-    public void run() {
-        while(!Thread.interrupted()) {
+    /**
+     * Handles a single frame recieved from the client.
+     * Called by the engine, on the thread that read the frame.
+     * @param f The frame that was recieved
+     */
+    void onFrame(Frame f) {
+        framesIn.increment();
+        jaws.metrics.frameIn(f.opcode);
+        if (f.opcode != Frame.OpCode.PONG) {
+            lastRecieved = System.nanoTime();
+        }
+
+        if (f.opcode == Frame.OpCode.TEXT || f.opcode == Frame.OpCode.BINARY) {
+            inflating = f.rsv1;
+        }
+        else if (f.rsv1) {
+            // Only the first frame of a data message may have RSV1 set
+            this.close("Protocol error");
+            return;
+        }
+        if (inflating && f.opcode != Frame.OpCode.PING && f.opcode != Frame.OpCode.PONG && f.opcode != Frame.OpCode.CONNECTION_CLOSE) {
+            if (deflate == null) {
+                this.close("Compression was not negotiated");
+                return;
+            }
             try {
-                Frame f = new Frame(input);
-                switch(f.opcode) {
-                    case PING:
-                        output.write(Frame.getPongFrame(f.messageBytes));
-                        break;
-                    case PONG:
-                        jaws.onPong(this);
-                        break;
-                    case CONNECTION_CLOSE:
-                        this.close(null);
-                        break;
-                    case TEXT:
-                        if(f.fin) {
-                            jaws.onMessage(this, f.message);
-                        }
-                        else {
-                            // Begin fragmented message.
-                            stringBuilder = new StringBuilder();
-                            stringBuilder.append(f.message);
-                        }
-                        break;
-                    case CONTINUATION:
-                        if (f.fin) {
-                            if(stringBuilder != null) {
-                                stringBuilder.append(f.message);
-                                jaws.onMessage(this, stringBuilder.toString());
-                            }
-                        }
-                        else {
-                            if(stringBuilder != null) {
-                                stringBuilder.append(f.message);
-                            }
-                        }
-                        break;
-                    default:
-                        Logger.log("Unhandled message with opcode "+f.opcode, Logger.WS_IO);
-                        this.close("Server has not implemented opcode "+f.opcode);
-                        break;
-                }
+                long sofar = f.opcode == Frame.OpCode.CONTINUATION ? messageLength : 0;
+                f = new Frame(f.fin, false, f.opcode.code, deflate.inflate(f.payload, f.fin, maxMessageSize() - sofar));
+            }
+            catch(CloseException e) {
+                discardMessage();
+                this.close(e.code, e.getMessage());
+                return;
             }
             catch(IOException e) {
-                if(!socket.isClosed()) {
-                    e.printStackTrace();
-                    this.close("Internal server error");
+                this.close("Invalid compressed data");
+                return;
+            }
+        }
+
+        switch(f.opcode) {
+            case PING:
+                writeControl(Frame.getPongFrame(f.payload));
+                break;
+            case PONG:
+                onPongFrame(f.payload);
+                jaws.onPong(this);
+                break;
+            case CONNECTION_CLOSE:
+                this.close(null);
+                break;
+            case TEXT:
+            case BINARY:
+                if (inMessage) {
+                    discardMessage();
+                    this.close(CloseException.PROTOCOL_ERROR, "New message before the last one was finished");
+                    return;
+                }
+                inMessage = true;
+                messageBinary = f.opcode == Frame.OpCode.BINARY;
+                messageLength = 0;
+                utf8.reset();
+                onData(f);
+                break;
+            case CONTINUATION:
+                if (!inMessage) {
+                    this.close(CloseException.PROTOCOL_ERROR, "Continuation frame without a message");
+                    return;
+                }
+                onData(f);
+                break;
+            default:
+                Logger.log("Unhandled message with opcode {}", f.opcode, Logger.WS_IO);
+                this.close("Server has not implemented opcode "+f.opcode);
+                break;
+        }
+    }
+
+    /**
+     * @return The most bytes a message may have, as set by the server, and as can be held by the way it is delivered
+     */
+    private long maxMessageSize() {
+        long max = jaws.getMaxMessageSize();
+        return streamingIn ? max : Math.min(max, FrameParser.MAX_ARRAY);
+    }
+
+    /**
+     * Adds a frame of a TEXT or BINARY message, and hands the message to the handler when it is complete.
+     * The fragments are kept as they are until the last one, so a message in a single frame is never copied.
+     * Binary messages past the spill threshold are moved to a SpillFile.
+     * Text is checked to be UTF-8 frame by frame, so the connection is closed at the first invalid byte.
+     */
+    private void onData(Frame f) {
+        boolean whole = f.fin && f.opcode != Frame.OpCode.CONTINUATION;
+        messageLength += f.payload.length;
+        if (messageLength > maxMessageSize()) {
+            discardMessage();
+            this.close(CloseException.MESSAGE_TOO_BIG, "Message too big");
+            return;
+        }
+        if (!messageBinary && !(utf8.update(f.payload, 0, f.payload.length) && (!f.fin || utf8.isComplete()))) {
+            discardMessage();
+            inMessage = false;
+            this.close(CloseException.INVALID_PAYLOAD, "Invalid UTF-8");
+            return;
+        }
+        if (f.fin) {
+            inMessage = false;
+        }
+
+        if (whole) {
+            // The whole message in a single frame, the common case
+            deliver(f.payload);
+            return;
+        }
+        if (streamingIn) {
+            jaws.onMessageChunk(this, ByteBuffer.wrap(f.payload), messageBinary, f.fin);
+            return;
+        }
+
+        try {
+            long threshold = jaws.getSpillThreshold();
+            if (spill == null && messageBinary && threshold > 0 && messageLength > threshold) {
+                spill = SpillFile.create(jaws.getSpillDirectory());
+                if (fragments != null) {
+                    for (byte[] b : fragments) {
+                        spill.write(b);
+                    }
+                    fragments = null;
+                }
+            }
+            if (spill != null) {
+                spill.write(f.payload);
+            }
+            else {
+                if (fragments == null) {
+                    fragments = new ArrayList<byte[]>();
+                }
+                fragments.add(f.payload);
+            }
+
+            if (f.fin) {
+                if (spill != null) {
+                    ByteBuffer mapped = spill.map();
+                    spill = null;
+                    jaws.metrics.spilledMessages.increment();
+                    jaws.onBinaryMessage(this, mapped);
+                }
+                else {
+                    byte[] message = join(fragments, messageLength);
+                    fragments = null;
+                    deliver(message);
+                }
+            }
+        }
+        catch(IOException e) {
+            discardMessage();
+            if (!isClosed()) {
+                Logger.logErr("Could not spill message to disk: {}", e.getMessage(), Logger.GENERAL);
+                e.printStackTrace();
+                this.close(1011, "Internal server error");
+            }
+        }
+    }
+
+    private void deliver(byte[] message) {
+        if (messageBinary) {
+            jaws.onBinaryMessage(this, ByteBuffer.wrap(message));
+        }
+        else {
+            jaws.onTextMessage(this, ByteBuffer.wrap(message));
+        }
+    }
+
+    /**
+     * Forgets the fragments of a message that will not be completed.
+     */
+    private void discardMessage() {
+        fragments = null;
+        SpillFile s = spill;
+        if (s != null) {
+            spill = null;
+            s.discard();
+        }
+    }
+
+    private static byte[] join(ArrayList<byte[]> fragments, long length) {
+        if (fragments.size() == 1) {
+            return fragments.get(0);
+        }
+        byte[] joined = new byte[(int)length];
+        int pos = 0;
+        for (byte[] b : fragments) {
+            System.arraycopy(b, 0, joined, pos, b.length);
+            pos += b.length;
+        }
+        return joined;
+    }
+
+    /**
+     * Queues a whole message for sending to the client. The backpressure policy applies if the client is too slow.
+     * @param frame The packed frame, in a buffer of its own
+     * @param key The conflation key of the message, or null
+     * @return A future completed once the frame is written, or failed if the message was dropped or the connection is closed
+     */
+    CompletableFuture<Void> write(PooledBuffer frame, Object key) {
+        return write(frame.buffer, frame, key);
+    }
+
+    /**
+     * Queues a whole message for sending to the client. The backpressure policy applies if the client is too slow.
+     * @param frame The packed frame
+     * @param pooled The buffer holding the frame, or null. This reference is released once the frame is written or dropped.
+     * @param key The conflation key of the message, or null
+     * @return A future completed once the frame is written, or failed if the message was dropped or the connection is closed
+     */
+    CompletableFuture<Void> write(ByteBuffer frame, PooledBuffer pooled, Object key) {
+        deferredLock.lock();
+        try {
+            if (streamingOut) {
+                // Another message is being sent in fragments. This frame has to wait until it is done.
+                CompletableFuture<Void> future = new CompletableFuture<Void>();
+                deferred.add(() -> enqueue(frame, pooled, key).whenComplete((v, e) -> complete(future, e)));
+                return future;
+            }
+            return enqueue(frame, pooled, key);
+        }
+        finally {
+            deferredLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a message right away, even if a stream is being sent.
+     */
+    private CompletableFuture<Void> enqueue(ByteBuffer frame, PooledBuffer pooled, Object key) {
+        if (isClosed()) {
+            return failed("Connection closed", pooled);
+        }
+        CompletableFuture<Void> refused = admit(key);
+        if (refused != null) {
+            release(pooled);
+            return refused;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        countOut(frame); // Before the writer may consume the buffer
+        if (!outbound.offer(frame, pooled, future, key)) {
+            return failed("Outbound queue full", pooled);
+        }
+        scheduleFlush();
+        return future;
+    }
+
+    /**
+     * Queues a frame that must not be dropped, such as a fragment of a message that is partly sent.
+     */
+    private CompletableFuture<Void> enqueueFragment(PooledBuffer frame) {
+        return enqueueFragment(frame.buffer, frame);
+    }
+
+    /**
+     * Queues a frame that must not be dropped.
+     * @param pooled The buffer holding the frame, or null
+     */
+    private CompletableFuture<Void> enqueueFragment(ByteBuffer frame, PooledBuffer pooled) {
+        if (isClosed()) {
+            return failed("Connection closed", pooled);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        countOut(frame);
+        outbound.add(frame, pooled, future);
+        scheduleFlush();
+        return future;
+    }
+
+    /**
+     * Applies the backpressure policy, if the outbound queue has reached the high watermark.
+     * May drop queued messages to make room, or wait for the client to catch up.
+     * @param key The conflation key of the message to be queued, or null
+     * @return null if the message may be queued, or a failed future if it is dropped
+     */
+    private CompletableFuture<Void> admit(Object key) {
+        if (outbound.bytes() < jaws.getHighWatermark()) {
+            return null;
+        }
+        switch(jaws.getBackpressurePolicy()) {
+            case BLOCK:
+                return awaitWritable();
+            case DROP_OLDEST:
+                int n = outbound.dropOldest();
+                if (n > 0) {
+                    jaws.metrics.droppedMessages.add(n);
+                    return null;
+                }
+                break; // Nothing could be dropped, so drop the new one
+            case CONFLATE:
+                if (key != null && outbound.dropKey(key)) {
+                    jaws.metrics.droppedMessages.increment();
+                    return null;
                 }
-                // else ignore. The connection is closed. All is well
+                break;
+            case DISCONNECT:
+                if (!slowConsumer.compareAndSet(false, true)) {
+                    return failed("Slow consumer, connection closed"); // Another sender is already closing it
+                }
+                Logger.log("Disconnecting slow consumer, {} bytes queued", outbound.bytes(), Logger.GENERAL);
+                jaws.metrics.slowConsumerDisconnects.increment();
+                outbound.dropAll();
+                // Closing waits for the close frame to be written, which must not hold up the sender
+                jaws.getWorkerPool().execute(() -> this.close(1008, "Slow consumer"));
+                return failed("Slow consumer, connection closed");
+            default:
+                break;
+        }
+        jaws.metrics.droppedMessages.increment();
+        return failed("Slow consumer, message dropped");
+    }
+
+    /**
+     * Waits until the outbound queue is drained to the low watermark, or the connection is closed.
+     * @return null once the message may be queued, or a failed future
+     */
+    private CompletableFuture<Void> awaitWritable() {
+        if (Thread.currentThread() instanceof EventLoop) {
+            // The event loop is the writer of its connections, so waiting here would wait forever
+            jaws.metrics.droppedMessages.increment();
+            return failed("Slow consumer, can not block the event loop");
+        }
+        writableLock.lock();
+        try {
+            while(!outbound.isWritable() && !isClosed()) {
+                writableChanged.await(100, TimeUnit.MILLISECONDS);
             }
         }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed("Interrupted while waiting for a slow consumer");
+        }
+        finally {
+            writableLock.unlock();
+        }
+        return isClosed() ? failed("Connection closed") : null;
+    }
+
+    /**
+     * Called by the outbound queue when it crosses a watermark.
+     */
+    private void writabilityChanged(boolean writable) {
+        if (writable) {
+            signalWritable();
+        }
+        jaws.onWritabilityChanged(this, writable);
+    }
+
+    private void signalWritable() {
+        writableLock.lock();
+        try {
+            writableChanged.signalAll();
+        }
+        finally {
+            writableLock.unlock();
+        }
+    }
+
+    private static void complete(CompletableFuture<Void> future, Throwable e) {
+        if (e != null) {
+            future.completeExceptionally(e);
+        }
+        else {
+            future.complete(null);
+        }
+    }
+
+    private static CompletableFuture<Void> failed(String reason) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        future.completeExceptionally(new IOException(reason));
+        return future;
+    }
+
+    private static CompletableFuture<Void> failed(String reason, PooledBuffer pooled) {
+        release(pooled);
+        return failed(reason);
+    }
+
+    private static void release(PooledBuffer pooled) {
+        if (pooled != null) {
+            pooled.release();
+        }
+    }
+
+    /**
+     * Queues a control frame. Control frames are not subject to the queue capacity.
+     * @param frameBytes The packed frame
+     * @return A future completed once the frame is written
+     */
+    CompletableFuture<Void> writeControl(byte[] frameBytes) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        ByteBuffer frame = ByteBuffer.wrap(frameBytes);
+        countOut(frame);
+        outbound.add(frame, future);
+        scheduleFlush();
+        return future;
+    }
+
+    private void countOut(ByteBuffer frame) {
+        framesOut.increment();
+        bytesOut.add(frame.remaining());
+        jaws.metrics.frameOut(frame);
+    }
+
+    /**
+     * Counts bytes read from the socket. Called by the engine.
+     * @param n The number of bytes read
+     */
+    void countIn(int n) {
+        bytesIn.add(n);
+        jaws.metrics.bytesIn.add(n);
+    }
+
+    /**
+     * Makes sure a writer will drain the outbound queue. Must not block.
+     */
+    abstract void scheduleFlush();
+
+    /**
+     * Releases the underlying transport.
+     * @param closeFrame A CONNECTION_CLOSE frame to send before closing, or null to send nothing
+     */
+    abstract void shutdown(byte[] closeFrame);
+
+    /**
+     * @return true if close() has been called on this connection, or the connection was lost
+     */
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Get the number of handler calls for this connection waiting to be made.
+     * @return The number of queued events
+     */
+    public int getPendingEvents() {
+        return mailbox.size();
+    }
+
+    int getQueuedFrames() {
+        return outbound.size();
+    }
+
+    /**
+     * @return true if the client asked to resume from a sequence number when it connected, and was sent every broadcast
+     * it missed from the journal. See JaWS.setJournal().
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return The topics this connection is subscribed to, see JaWS.subscribe(). The set can not be modified.
+     */
+    public Set<String> getTopics() {
+        return Collections.unmodifiableSet(topics);
+    }
+
+    /**
+     * Tells if the client keeps up with what is sent to it.
+     * A connection stops being writable when the bytes waiting to be written reach the high watermark,
+     * and is writable again once they are drained to the low watermark. See JaWS.setOutboundWatermarks().
+     * @return false while messages sent to the connection are subject to the backpressure policy
+     */
+    public boolean isWritable() {
+        return outbound.isWritable();
+    }
+
+    /**
+     * Get the traffic counters, queue depths and last ping round trip of this connection.
+     * @return The metrics as they are now
+     */
+    public ConnectionMetrics getMetrics() {
+        return new ConnectionMetrics(this, framesIn.sum(), framesOut.sum(), bytesIn.sum(), bytesOut.sum(),
+                outbound.size(), outbound.bytes(), mailbox.size(), pingRoundTrip);
     }
 
     /**
      * Sends a string message to the client.
-     * This method kicks off a new thread that will handle the actual sending, and return at once.
+     * The message is queued behind any messages already sent to this connection, and this method returns at once.
+     * Callbacks attached to the returned future are run by the writer, and should not block.
+     * @param message The message to send
+     * @return A future completed once the message is written to the socket, or failed if it could not be sent
+     */
+    public CompletableFuture<Void> send(String message) {
+        return send(message, null);
+    }
+
+    /**
+     * Sends a string message to the client, with a conflation key.
+     * If the backpressure policy is CONFLATE and the client is too slow, a queued message with an equal key is replaced by this one.
      * @param message The message to send
+     * @param conflationKey Identifies what the message is about, such as the name of a stock. May be null.
+     * @return A future completed once the message is written to the socket, or failed if it could not be sent or was replaced
      */
-    public void send(String message) {
-        new Thread() {
+    public CompletableFuture<Void> send(String message, Object conflationKey) {
+        Logger.log("Sending: {}", message, Logger.WS_IO);
+        return sendMessage(Frame.OpCode.TEXT, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), conflationKey);
+    }
 
-            @Override
-            public void run() {
-                Frame f = new Frame(message);
-                try {
-                    Logger.log(f.message, Logger.WS_IO);
-                    output.write(f.frameBytes);
+    /**
+     * Sends a text message that is already encoded, such as one recieved through onTextMessage(), without decoding it.
+     * @param utf8 The message as UTF-8. It is not checked. The bytes are copied, and the position is not changed.
+     * @return A future completed once the message is written to the socket, or failed if it could not be sent
+     */
+    public CompletableFuture<Void> sendText(ByteBuffer utf8) {
+        return sendMessage(Frame.OpCode.TEXT, utf8, null);
+    }
+
+    /**
+     * Sends a binary message to the client.
+     * The bytes between the buffer's position and limit are copied into the frame before this method returns,
+     * so the buffer may be reused at once. Its position is not changed.
+     * @param message The message to send
+     * @return A future completed once the message is written to the socket, or failed if it could not be sent
+     */
+    public CompletableFuture<Void> send(ByteBuffer message) {
+        return send(message, null);
+    }
+
+    /**
+     * Sends a binary message to the client, with a conflation key. See send(String, Object).
+     * @param message The message to send. It is copied, and its position is not changed.
+     * @param conflationKey Identifies what the message is about. May be null.
+     * @return A future completed once the message is written to the socket, or failed if it could not be sent or was replaced
+     */
+    public CompletableFuture<Void> send(ByteBuffer message, Object conflationKey) {
+        Logger.log("Sending {} bytes of binary data", message.remaining(), Logger.WS_IO);
+        return sendMessage(Frame.OpCode.BINARY, message, conflationKey);
+    }
+
+    /**
+     * Sends a binary message read from a stream, as a sequence of fragments.
+     * See send(ReadableByteChannel, boolean, int).
+     * @param in The stream to read the message from. It is read to the end, but not closed.
+     * @param chunkSize The largest number of bytes to send in each fragment
+     * @return A future completed once the last fragment is written to the socket
+     */
+    public CompletableFuture<Void> send(InputStream in, int chunkSize) {
+        return send(Channels.newChannel(in), true, chunkSize);
+    }
+
+    /**
+     * Sends a text message read from a Reader, as a sequence of fragments.
+     * See send(ReadableByteChannel, boolean, int).
+     * @param reader The reader to read the message from. It is read to the end, but not closed.
+     * @param chunkSize The largest number of UTF-8 bytes to send in each fragment
+     * @return A future completed once the last fragment is written to the socket
+     */
+    public CompletableFuture<Void> send(Reader reader, int chunkSize) {
+        return send(new ReaderChannel(reader), false, chunkSize);
+    }
+
+    /**
+     * Sends a message read from a channel, as a sequence of fragments.
+     * The source is read by a thread from the server's worker pool, one chunk at a time, and a chunk is not read
+     * before the one before it is written to the socket. Memory use does not grow with the size of the message.
+     * <p>
+     * Messages sent to this connection while the stream is sent are held back, and sent after the last fragment.
+     * Fragments are never dropped by the backpressure policy, as the message can not be completed without them.
+     * If reading the source fails after the first fragment is sent, the message can not be completed, and the connection is closed.
+     * @param source The channel to read the message from. It is read to the end, but not closed.
+     * @param binary true to send a binary message. If false, the bytes must be UTF-8 encoded text.
+     * @param chunkSize The largest number of bytes to send in each fragment
+     * @return A future completed once the last fragment is written to the socket
+     */
+    public CompletableFuture<Void> send(ReadableByteChannel source, boolean binary, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive, was "+chunkSize);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        Runnable start = () -> jaws.getWorkerPool().execute(() -> pump(source, binary, chunkSize, future));
+
+        deferredLock.lock();
+        try {
+            if (streamingOut) {
+                deferred.add(() -> {
+                    streamingOut = true;
+                    start.run();
+                });
+            }
+            else {
+                streamingOut = true;
+                start.run();
+            }
+        }
+        finally {
+            deferredLock.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * Reads the source, and queues one fragment at a time. Runs on the worker pool.
+     */
+    private void pump(ReadableByteChannel source, boolean binary, int chunkSize, CompletableFuture<Void> future) {
+        boolean sentAny = false;
+        try {
+            ByteBuffer current = fill(source, ByteBuffer.allocate(chunkSize));
+            Frame.OpCode opcode = binary ? Frame.OpCode.BINARY : Frame.OpCode.TEXT;
+            CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+
+            while(true) {
+                // Read ahead, to know if the current chunk is the last one
+                ByteBuffer next = current.limit() == chunkSize ? fill(source, ByteBuffer.allocate(chunkSize)) : null;
+                boolean fin = next == null || !next.hasRemaining();
+
+                written.get(); // Wait for the previous fragment, so we hold at most two chunks
+                written = enqueueFragment(Frame.encodeFragment(opcode, fin, current));
+                sentAny = true;
+                opcode = Frame.OpCode.CONTINUATION;
+
+                if (fin) break;
+                current = next;
+            }
+            written.get();
+            future.complete(null);
+        }
+        catch(Exception e) {
+            future.completeExceptionally(e);
+            if (sentAny) {
+                this.close("Internal server error");
+            }
+        }
+        finally {
+            endStream();
+        }
+    }
+
+    private static ByteBuffer fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Sends what was held back while a stream was sent, until the next stream starts.
+     */
+    private void endStream() {
+        deferredLock.lock();
+        try {
+            streamingOut = false;
+            Runnable r;
+            while(!streamingOut && (r = deferred.poll()) != null) {
+                r.run();
+            }
+        }
+        finally {
+            deferredLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the client the messages it missed from the journal, followed by the messages sent to it from now on.
+     * Like a stream, catching up holds back every message sent to the connection meanwhile, so the client gets everything in order.
+     * A worker thread queues the frames straight from the journal's mapped files, and waits for the client to take them whenever
+     * the queue reaches the high watermark. Messages that are sent live while they are also read from the journal are skipped.
+     * @param journal The journal
+     * @param topic The topic to resume, or null for the broadcasts
+     * @param after The sequence number of the last message the client got
+     * @param register Makes the connection, or its subscription to the topic, live. Called once live messages are held back.
+     * @return true if the journal held every message the client missed
+     */
+    boolean resume(Journal journal, String topic, long after, Runnable register) {
+        CompletableFuture<Journal.Cursor> cursor = new CompletableFuture<Journal.Cursor>();
+        Runnable start = () -> {
+            streamingOut = true;
+            cursor.thenAccept(c -> jaws.getWorkerPool().execute(() -> catchUp(c)));
+        };
+        liveFrom(topic, Long.MAX_VALUE); // Until we know where the journal ends
+        deferredLock.lock();
+        try {
+            if (streamingOut) {
+                deferred.add(start);
+            }
+            else {
+                start.run();
+            }
+        }
+        finally {
+            deferredLock.unlock();
+        }
+        register.run();
+        Journal.Cursor c = journal.cursor(topic, after, this);
+        if (topic == null) {
+            resumed = c != null;
+        }
+        cursor.complete(c);
+        return c != null;
+    }
+
+    /**
+     * Queues the frames read from the journal. Runs on the worker pool.
+     * @param cursor The frames, or null if the client can not be caught up
+     */
+    private void catchUp(Journal.Cursor cursor) {
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        try {
+            ByteBuffer frame;
+            while(cursor != null && !isClosed() && (frame = cursor.next()) != null) {
+                if (outbound.bytes() >= jaws.getHighWatermark()) {
+                    written.get(); // Let the client take what is queued before reading on
                 }
-                catch(IOException e) {
-                    e.printStackTrace();
+                written = enqueueFragment(frame, null);
+            }
+        }
+        catch(Exception e) {
+            Logger.log("Catching up stopped: {}", e.getMessage(), Logger.GENERAL); // The connection was closed
+        }
+        finally {
+            endStream();
+            CompletableFuture<Void> last = written;
+            if (cursor != null) {
+                // The frames are slices of the journal's mappings. The queue is written in order, so once the last frame is
+                // written, they all are. If it failed, the connection was closed, and the writer may still hold one.
+                last.whenComplete((v, e) -> cursor.close(e == null));
+            }
+        }
+    }
+
+    /**
+     * Sets which journaled messages the connection gets from the journal, rather than live. Called by the journal, under its lock.
+     * @param topic The topic, or null for broadcasts
+     * @param sequence The first sequence number to send live, or 0 to send every message live
+     */
+    void liveFrom(String topic, long sequence) {
+        if (topic == null) {
+            liveFrom = sequence;
+        }
+        else if (sequence == 0) {
+            topicsLiveFrom.remove(topic);
+        }
+        else {
+            topicsLiveFrom.put(topic, sequence);
+        }
+    }
+
+    /**
+     * @return true if the message was read from the journal for this connection, and must not be sent again
+     */
+    private boolean sentFromJournal(SharedMessage message) {
+        if (message.sequence == 0) {
+            return false;
+        }
+        if (message.topic == null) {
+            return message.sequence < liveFrom;
+        }
+        if (topicsLiveFrom.isEmpty()) {
+            return false;
+        }
+        Long from = topicsLiveFrom.get(message.topic);
+        return from != null && message.sequence < from;
+    }
+
+    /**
+     * Packs and queues a message, compressing it if the client agreed to permessage-deflate.
+     * The frame is packed into a pooled buffer before this method returns, so the payload may be reused at once.
+     * @param opcode TEXT or BINARY
+     * @param payload The message, between position and limit. Its position is not changed.
+     * @param key The conflation key, or null
+     * @return A future completed once the message is written to the socket
+     */
+    CompletableFuture<Void> sendMessage(Frame.OpCode opcode, ByteBuffer payload, Object key) {
+        PerMessageDeflate d = deflate;
+        if (d == null || payload.remaining() < PerMessageDeflate.MIN_COMPRESS_SIZE) {
+            return write(Frame.encodeDataFrame(opcode, payload), key);
+        }
+        if (d.serverNoContextTakeover) {
+            return write(Frame.encodeCompressedFrame(opcode, d.compress(array(payload))), key);
+        }
+
+        // The client inflates in the order frames arrive, so compressing and queuing must happen together.
+        // A frame compressed against the context can not be dropped later, so the policy is applied before compressing,
+        // and before taking the lock, as it may wait for the client.
+        CompletableFuture<Void> refused = admit(key);
+        if (refused != null) {
+            return refused;
+        }
+        synchronized(d) {
+            if (isClosed()) {
+                return failed("Connection closed");
+            }
+            PooledBuffer frame = Frame.encodeCompressedFrame(opcode, d.compress(array(payload)));
+            deferredLock.lock();
+            try {
+                if (streamingOut) {
+                    CompletableFuture<Void> future = new CompletableFuture<Void>();
+                    deferred.add(() -> enqueueFragment(frame).whenComplete((v, e) -> complete(future, e)));
+                    return future;
                 }
+                return enqueueFragment(frame);
+            }
+            finally {
+                deferredLock.unlock();
             }
+        }
+    }
 
-        }.start();
+    /**
+     * @return The bytes between position and limit, without copying them if they are a whole array
+     */
+    private static byte[] array(ByteBuffer payload) {
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0 && payload.remaining() == payload.array().length) {
+            return payload.array();
+        }
+        return Frame.toArray(payload);
+    }
+
+    /**
+     * Sends a message shared with other connections, such as a broadcast.
+     * The shared encodings are used when possible. A connection that keeps compression context between messages has to compress on its own.
+     * @param message The message. It is not modified, as we write from duplicates, each holding its own reference to the buffer.
+     * @param key The conflation key, or null
+     * @return A future completed once the message is written to the socket
+     */
+    CompletableFuture<Void> sendShared(SharedMessage message, Object key) {
+        if (sentFromJournal(message)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        PerMessageDeflate d = deflate;
+        PooledBuffer frame;
+        if (d == null || !message.isCompressible()) {
+            frame = message.frame();
+        }
+        else if (d.serverNoContextTakeover) {
+            frame = message.compressedFrame();
+        }
+        else {
+            return sendMessage(message.opcode, ByteBuffer.wrap(message.payload), key);
+        }
+        frame.retain();
+        return write(frame.buffer.duplicate(), frame, key);
     }
 
     /**
      * Sends a ping-frame to the client.
      * The sending is asynchronous, just as the send() method
+     * @return A future completed once the ping is written to the socket
      */
-    public void ping() {
-        new Thread() {
+    public CompletableFuture<Void> ping() {
+        Logger.log("Pinging client", Logger.WS_IO);
+        long now = System.nanoTime();
+        if (pingSentAt == 0) {
+            pingSentAt = now;
+        }
+        lastPingSent = now;
+        return writeControl(Frame.getPingFrame(now));
+    }
 
-            @Override
-            public void run() {
-                try {
-                    Logger.log("Pinging client", Logger.WS_IO);
-                    output.write(Frame.PING_FRAME);
-                }
-                catch(IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Any pong shows the client is alive. One that echoes a ping we sent also gives the round trip time.
+     * Answering a ping answers the ones sent before it too.
+     */
+    private void onPongFrame(byte[] payload) {
+        missedPongs = 0;
+        if (payload.length != 8) return;
+
+        long stamp = ByteBuffer.wrap(payload).getLong();
+        long oldest = pingSentAt;
+        if (oldest != 0 && stamp - oldest >= 0 && lastPingSent - stamp >= 0) {
+            // Pings sent after this one are still unanswered
+            pingSentAt = stamp == lastPingSent ? 0 : stamp + 1;
+            pingRoundTrip = (System.nanoTime() - stamp) / 1000;
+            jaws.metrics.pingRoundTrip.record(pingRoundTrip);
+        }
+    }
+
+    /**
+     * Starts the keepalive pings and the idle timeout, if the server has them enabled. Called once the connection is open.
+     */
+    void startTimers() {
+        int interval = jaws.getPingInterval();
+        if (interval > 0) {
+            jaws.timer.schedule(() -> keepalive(interval), interval);
+        }
+        int idle = jaws.getIdleTimeout();
+        if (idle > 0) {
+            jaws.timer.schedule(() -> checkIdle(idle), idle);
+        }
+    }
+
+    /**
+     * Runs on the timer every ping interval. Pings the client, and gives up on it if too many pings in a row are not answered.
+     */
+    private void keepalive(int interval) {
+        if (isClosed()) return;
+        if (pingSentAt != 0 && ++missedPongs >= jaws.getMaxMissedPongs()) {
+            timedOut("Ping timeout");
+            return;
+        }
+        ping();
+        jaws.timer.schedule(() -> keepalive(interval), interval);
+    }
 
-        }.start();
+    /**
+     * Runs on the timer when the connection may have been idle for the whole timeout.
+     */
+    private void checkIdle(int idle) {
+        if (isClosed()) return;
+        long idleFor = (System.nanoTime() - lastRecieved) / 1000000L;
+        if (idleFor >= idle) {
+            timedOut("Idle timeout");
+        }
+        else {
+            // Check again when the timeout is up, counted from the last frame
+            jaws.timer.schedule(() -> checkIdle(idle), idle - idleFor);
+        }
+    }
+
+    private void timedOut(String reason) {
+        Logger.log("Closing connection: {}", reason, Logger.GENERAL);
+        // Closing may wait for the close frame to be written, so it is not done on the timer thread
+        jaws.getWorkerPool().execute(() -> this.close(reason));
     }
 
     /**
      * Closes the connection to the client.
      * If the argument <code>reason</code> is not null, a last CONNECTION_CLOSE frame is sent to the client
-     * before the socket is closed, with the argument as reason for the connection close.
-     * This sending is not asynchronous, so the socket is not closed before the message either sent, or an exception is thrown.
+     * before the socket is closed, with the argument as reason for the connection close, and status code 1000.
      * If an exception is thrown when trying to send the close frame, it is ignored, and we proceed to close the connection.
+     * Calling this method more than once has no effect.
      * @param reason The reason for the close, to send to the client. If null, we send nothing.
      */
     public void close(String reason) {
-        try {
-            if(reason != null){
-                try{
-                    output.write(Frame.getCloseFrame(reason));
-                }
-                catch(IOException e){
-                    // AH...we tried
-                }
-            }
-            input.close();
-            output.close();
-            socket.close();
+        if (reason == null) {
+            shutdownOnce(null);
+        }
+        else {
+            close(1000, reason);
+        }
+    }
+
+    /**
+     * Closes the connection to the client, with a status code as defined in RFC 6455, section 7.4.
+     * See close(String).
+     * @param code The status code, such as 1000 for a normal closure or 1008 for a policy violation
+     * @param reason The reason for the close. Cut to fit in a control frame if it is too long.
+     */
+    public void close(int code, String reason) {
+        shutdownOnce(Frame.getCloseFrame(code, reason));
+    }
+
+    private void shutdownOnce(byte[] closeFrame) {
+        if (!closed.compareAndSet(false, true)) return;
 
-            this.interrupt();
-            jaws.onDisconnect(this);
+        signalWritable(); // Senders waiting for the client give up
+        shutdown(closeFrame);
+        if (deflate != null) {
+            deflate.release();
         }
-        catch(IOException e) {
-            Logger.logErr("Exception thrown while closing connection!", Logger.WS_IO);
-            e.printStackTrace();
+        SpillFile s = spill;
+        if (s != null) {
+            s.discard(); // The reader fails to write to it, if it is still reading
         }
+        jaws.onDisconnect(this);
     }
 }
-
@@ -0,0 +1,90 @@
+package jaws;
+
+/**
+ * ConnectionMetrics.java
+ *
+ * The metrics of a single connection at one point in time, as returned by Connection.getMetrics() and JaWS.getConnectionMetrics().
+ * Frames and bytes out are counted when they are queued for sending.
+ */
+public final class ConnectionMetrics {
+
+    private final Connection connection;
+    private final long framesIn;
+    private final long framesOut;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final int queuedFrames;
+    private final long queuedBytes;
+    private final int pendingEvents;
+    private final long pingRoundTrip;
+
+    ConnectionMetrics(Connection connection, long framesIn, long framesOut, long bytesIn, long bytesOut,
+            int queuedFrames, long queuedBytes, int pendingEvents, long pingRoundTrip) {
+        this.connection = connection;
+        this.framesIn = framesIn;
+        this.framesOut = framesOut;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.queuedFrames = queuedFrames;
+        this.queuedBytes = queuedBytes;
+        this.pendingEvents = pendingEvents;
+        this.pingRoundTrip = pingRoundTrip;
+    }
+
+    /**
+     * @return The connection the metrics are for
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public long getFramesIn() {
+        return framesIn;
+    }
+
+    public long getFramesOut() {
+        return framesOut;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return Frames waiting to be written. A queue that keeps growing means the client reads slower than we send.
+     */
+    public int getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    /**
+     * @return Bytes waiting to be written. Compared to the watermarks set with JaWS.setOutboundWatermarks().
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return Event handler calls waiting to be made for this connection
+     */
+    public int getPendingEvents() {
+        return pendingEvents;
+    }
+
+    /**
+     * @return The round trip time of the last answered ping, in microseconds, or -1 if no ping has been answered
+     */
+    public long getPingRoundTrip() {
+        return pingRoundTrip;
+    }
+
+    @Override
+    public String toString() {
+        return "frames in="+framesIn+" out="+framesOut+" bytes in="+bytesIn+" out="+bytesOut+
+            " queued="+queuedFrames+" ("+queuedBytes+" bytes) pending events="+pendingEvents+" ping rtt="+pingRoundTrip+"us";
+    }
+}
@@ -0,0 +1,79 @@
+package jaws;
+
+import java.util.Arrays;
+
+/**
+ * ConnectionRegistry.java
+ *
+ * The open connections of one shard of a server. With the NIO engine every EventLoop has its own, so connecting and disconnecting
+ * only ever contend with other connections on the same loop. The thread per connection engine has a single one.
+ * <p>
+ * Connections are kept in an array that grows by doubling, and every connection knows its place in it, so adding and removing
+ * one costs the same however many there are, even in a storm of connects. Broadcasts are far more common than connects and
+ * disconnects, and read a published copy of the array without taking any lock. The copy is made by the first broadcast after
+ * a change, so a burst of changes costs a single copy.
+ */
+class ConnectionRegistry {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private Connection[] table = new Connection[MIN_CAPACITY]; // Guarded by this
+    private volatile int count = 0; // Written under this
+    private volatile Connection[] published = new Connection[0]; // A copy of the first count of the table, or null after a change
+
+    /**
+     * @param con A connection not in any registry
+     */
+    synchronized void add(Connection con) {
+        if (con.registryIndex >= 0) return;
+        if (count == table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        table[count] = con;
+        con.registryIndex = count;
+        count++;
+        published = null;
+    }
+
+    /**
+     * Removes a connection. The last connection is moved into its place, so it does not have to be searched for.
+     * @param con The connection to remove. Nothing happens if it is not in this registry.
+     */
+    synchronized void remove(Connection con) {
+        int i = con.registryIndex;
+        if (i < 0 || i >= count || table[i] != con) return;
+
+        int last = count - 1;
+        if (i < last) {
+            table[i] = table[last];
+            table[i].registryIndex = i;
+        }
+        table[last] = null;
+        con.registryIndex = -1;
+        count = last;
+        if (table.length > MIN_CAPACITY && last < table.length / 4) {
+            table = Arrays.copyOf(table, table.length / 2);
+        }
+        published = null;
+    }
+
+    /**
+     * @return The connections as they are now. The array must not be modified.
+     */
+    Connection[] snapshot() {
+        Connection[] s = published;
+        if (s != null) {
+            return s;
+        }
+        synchronized(this) {
+            if (published == null) {
+                published = Arrays.copyOf(table, count);
+            }
+            return published;
+        }
+    }
+
+    int size() {
+        return count;
+    }
+}
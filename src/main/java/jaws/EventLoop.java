@@ -0,0 +1,234 @@
+package jaws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EventLoop.java
+ *
+ * A selector loop used by JaWS.Engine.NIO.
+ * Every loop owns a set of channels, and does all reading, parsing and writing for them on its own thread.
+ * It also has its own registry of open connections, and its own read buffer, so loops share nothing in the steady state.
+ * Other threads interact with a loop by handing it tasks through execute().
+ */
+class EventLoop extends Thread {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHER = 64; // Frames in one write
+    static final int MAX_GATHER_BYTES = 256 * 1024;
+
+    private final JaWS jaws;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // Connections waiting for their upgrade request. They all have the same timeout, so the deadlines are in order.
+    private final ArrayDeque<NioConnection> handshaking = new ArrayDeque<NioConnection>();
+
+    // Connections waiting out the write linger. They all linger as long, so the deadlines are in order.
+    private final ArrayDeque<NioConnection> lingering = new ArrayDeque<NioConnection>();
+
+    // Shared by all connections on this loop, as reading and parsing is done one connection at a time
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Shared by all connections on this loop, for gathering writes
+    final OutboundQueue.Entry[] batch = new OutboundQueue.Entry[MAX_GATHER];
+    final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    // The open connections of this loop
+    final ConnectionRegistry connections = new ConnectionRegistry();
+
+    // Channels handed to this loop and not yet closed. Counted by the acceptor, so a burst of accepts sees its own assignments.
+    private final AtomicInteger channels = new AtomicInteger(0);
+
+    private volatile boolean running = true;
+
+    EventLoop(JaWS jaws, int id) throws IOException {
+        super("JaWS-loop-"+id);
+        this.jaws = jaws;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted channel over to this loop.
+     * @param channel The channel, in non-blocking mode
+     */
+    void register(SocketChannel channel) {
+        channels.incrementAndGet();
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection con = new NioConnection(jaws, this, channel, key);
+                key.attach(con);
+                handshaking.add(con);
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+                channelClosed();
+                try {
+                    channel.close();
+                }
+                catch(IOException ignored) {
+                    // Nothing more to do
+                }
+            }
+        });
+    }
+
+    /**
+     * Called once for every channel given to register(), when it is closed.
+     */
+    void channelClosed() {
+        channels.decrementAndGet();
+    }
+
+    /**
+     * @return The number of channels owned by this loop, including ones doing the handshake
+     */
+    int getChannels() {
+        return channels.get();
+    }
+
+    /**
+     * Runs a task on this loop's thread.
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Flushes a connection once its write linger is over. Only called on the loop thread.
+     * @param con The connection, with flushAt set
+     */
+    void linger(NioConnection con) {
+        lingering.add(con);
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * Stops the loop. Channels still registered are closed without further notice.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while(running) {
+            try {
+                runTasks();
+                selector.select(nextTimeout(expireHandshakes(), expireLingering()));
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    NioConnection con = (NioConnection)key.attachment();
+                    if (con == null) continue;
+
+                    if (key.isValid() && key.isWritable()) {
+                        con.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        con.onReadable(readBuffer);
+                    }
+                }
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+            catch(RuntimeException e) {
+                // A misbehaving event handler must not take the whole loop down
+                e.printStackTrace();
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            }
+            catch(IOException ignored) {
+                // Shutting down anyway
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drops connections that have not completed their handshake in time.
+     * @return Milliseconds until the next handshake deadline, or 0 if no connection is waiting
+     */
+    private long expireHandshakes() {
+        long now = System.nanoTime();
+        NioConnection con;
+        while((con = handshaking.peek()) != null) {
+            if (!con.isHandshaking()) {
+                handshaking.poll();
+            }
+            else if (con.handshakeDeadline - now <= 0) {
+                handshaking.poll();
+                con.handshakeTimedOut();
+            }
+            else {
+                return Math.max(1, (con.handshakeDeadline - now) / 1000000L);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Flushes connections whose write linger is over.
+     * @return Milliseconds until the next connection is due, or 0 if no connection is lingering
+     */
+    private long expireLingering() {
+        long now = System.nanoTime();
+        NioConnection con;
+        while((con = lingering.peek()) != null) {
+            if (con.flushAt - now <= 0) {
+                lingering.poll();
+                con.lingerExpired();
+            }
+            else {
+                return Math.max(1, (con.flushAt - now + 999999L) / 1000000L);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The shortest of two timeouts, where 0 means no timeout
+     */
+    private static long nextTimeout(long a, long b) {
+        if (a == 0) return b;
+        if (b == 0) return a;
+        return Math.min(a, b);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -3,210 +3,217 @@ package jaws;
 import java.nio.charset.StandardCharsets;
 import java.nio.charset.Charset;
 import java.nio.ByteBuffer;
-import java.io.DataInputStream;
-import java.io.IOException;
 
 
 class Frame {
 
     final OpCode opcode;
 
-    final String message;
-
-    final byte[] messageBytes;
-
-    final int messageLength;
-
-    final byte[] frameBytes;
+    final byte[] payload; // Unmasked
 
     private static final Charset utf8 = StandardCharsets.UTF_8;
 
-    final byte[] mask;
-
     final boolean fin;
 
-    final static byte[] PING_FRAME;
-    static {
-        PING_FRAME = new byte[3];
-        PING_FRAME[0] = (byte)0x89; // Set fin flag (0x80) and opcode PING (0x0A)
-        PING_FRAME[1] = (byte)0x01; // Set mask bit to 0 and payload length to 1
-        PING_FRAME[2] = (byte)'!';  // Set dummy payload to '!'
+    final boolean rsv1; // Set on the first frame of a compressed message, see PerMessageDeflate
+
+    /**
+     * Creates a recieved frame from parts already read by a FrameParser.
+     * The payload array is owned by the frame from now on, no copy is made.
+     * @param fin The fin flag
+     * @param rsv1 The first reserved bit
+     * @param op The opcode
+     * @param payload The payload, already unmasked
+     */
+    Frame(boolean fin, boolean rsv1, int op, byte[] payload) {
+        this.fin = fin;
+        this.rsv1 = rsv1;
+        this.opcode = OpCode.getOpcode(op);
+        this.payload = payload;
     }
 
-    Frame(String message) {
-        this.message = message;
-        this.mask = null;
-        this.fin = true;
-
-        opcode = OpCode.TEXT;
-        messageBytes = message.getBytes(utf8);
-        messageLength = messageBytes.length;
-
-        this.frameBytes = pack(messageBytes, this.opcode.code, null);
+    /**
+     * Unmasks a payload in place. Eight bytes are unmasked at a time, by XOR-ing with the mask repeated twice as a long.
+     * @param payload The masked payload
+     * @param length The number of bytes to unmask, from the start of the array
+     * @param mask The masking key, as the four bytes in network order
+     */
+    static void unmask(byte[] payload, int length, int mask) {
+        long wideMask = ((long)mask << 32) | (mask & 0xFFFFFFFFL);
+        ByteBuffer words = ByteBuffer.wrap(payload); // Big endian, same as the mask
+
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            words.putLong(i, words.getLong(i) ^ wideMask);
+        }
+        for (; i < length; i++) {
+            payload[i] ^= (byte)(mask >>> (24 - 8 * (i & 3)));
+        }
     }
 
-    Frame(DataInputStream input) throws IOException {
-            byte[] header = new byte[2];
-            input.readFully(header);
-            this.fin = ((byte)header[0]&0x80) != 0;
-            boolean maskBit = (((byte)header[1])&0x80) != 0;
-            int op = (byte)header[0]&0x0F;
-            long payloadLen = (byte)(header[1]&0x7F);
-
-            this.opcode = OpCode.getOpcode(op);
-            //TODO: Handle opcode = null
-
-            int numPayloadbytes = 0;
-            Logger.log("byte1 payload length: "+payloadLen, Logger.WS_PARSE);
-            if (payloadLen == 126) {
-                numPayloadbytes = 2;
-            }
-            else if (payloadLen == 127) {
-                numPayloadbytes = 8;
-            }
-
-            if (numPayloadbytes > 0) {
-                byte[] b = new byte[numPayloadbytes];
-                input.readFully(b);
-
-                Logger.log("Constructing complex payload length...", Logger.WS_PARSE);
-
-                // Reverse the array
-                for(int i=0; i<b.length/2; i++) {
-                    byte temp = b[i];
-                    b[i] = b[b.length - i - 1];
-                    b[b.length - i - 1] = temp;
-                }
-
-                payloadLen = 0; // Reset payloadlen
-                for(int i=0; i<b.length; i++) {
-                    Logger.log("\tbyte "+i+" = 0x"+String.format("%02x", b[i]), Logger.WS_PARSE);
-                    Logger.log("Test1: "+(b[i]&0xFF)+", Test2: "+(8*i)+", Test3: "+((b[i]&0xFF) << (8 * i)), Logger.WS_PARSE);
-                    payloadLen |= ((b[i]&0xFF) << (8 * i));
-                }
-            }
-            Logger.log("Message length: "+payloadLen, Logger.WS_PARSE);
-
-            if (maskBit) {
-                this.mask = new byte[4];
-                input.readFully(mask);
-            }
-            else {
-                this.mask = null;
-            }
-
-            // This will fail for messages of size bigger than int max val.
-            byte[] payload = new byte[(int)payloadLen];
-            input.readFully(payload);
-
-            if (maskBit) {
-                this.message = decode(payload, this.mask);
-            }
-            else {
-                this.message = new String(payload, utf8);
-            }
-
-            this.messageBytes = this.message.getBytes(utf8);
-            this.messageLength = messageBytes.length;
-
-            this.frameBytes = pack(messageBytes, op, this.mask);
+    /**
+     * Packs an unmasked frame with the fin flag set into an array.
+     * @param payload The payload
+     * @param op The opcode
+     * @return The packed frame
+     */
+    private static byte[] pack(byte[] payload, int op) {
+        byte[] bytes = new byte[headerLength(payload.length) + payload.length];
+        ByteBuffer out = ByteBuffer.wrap(bytes);
+        putHeader(out, 0x80 | op, payload.length); // 0x80 is the fin flag
+        out.put(payload);
+        return bytes;
     }
 
-    private String decode(byte[] payload, byte[] mask) {
-       byte[] decoded = new byte[payload.length];
-       for (int i=0; i<payload.length; i++) {
-           decoded[i] = (byte)((int)payload[i] ^ (int)mask[i%4]);
-       }
-       return new String(decoded, utf8);
+    /**
+     * @return The length of the header of an unmasked frame with a payload of this length
+     */
+    private static int headerLength(int messageLen) {
+        return messageLen > 65535 ? 10 : messageLen > 125 ? 4 : 2;
     }
 
-    private static byte[] pack(byte[] messageBytes, int op, byte[] mask) {
-        /*
-         * 0 for single byte length,
-         * 1 for 2 bytes,
-         * and 2 for 8 bytes of paylod length
-         */
-        int length = 0;
-
-        int messageLen = messageBytes.length;
-        int framelength = 2+messageLen;
-
-        if (messageLen > 65535) {
-            length = 2;
-            framelength += 8;
+    /**
+     * Writes the header of an unmasked frame: the first byte, and the payload length in one, two or eight bytes.
+     * @param out The buffer to write to, with at least headerLength(messageLen) bytes remaining
+     * @param firstByte The fin flag, the reserved bits and the opcode
+     * @param messageLen The length of the payload
+     */
+    private static void putHeader(ByteBuffer out, int firstByte, int messageLen) {
+        Logger.log("Packing payload length {}", messageLen, Logger.WS_PARSE);
+        out.put((byte)firstByte);
+        if (messageLen <= 125) {
+            out.put((byte)messageLen);
         }
-        else if (messageLen > 125) {
-            length = 1;
-            framelength += 2;
+        else if (messageLen <= 65535) {
+            out.put((byte)126);
+            out.putShort((short)messageLen);
         }
+        else {
+            out.put((byte)127);
+            out.putLong(messageLen);
+        }
+    }
 
-        byte[] bytes = new byte[framelength];
-        int pointer = 2; // This will tell us what index in the array we will begin writing the message
-
-        // Writing payload length
-        Logger.log("---PACKING PAYLOAD LENGTH "+messageLen+"---", Logger.WS_PARSE);
-        bytes[0] = (byte)0x81; // 0x80 is the fin flag, 0x01 is opcode TEXT
-        switch(length) {
-            case 0:
-                bytes[1] = (byte)messageLen;
-
-                Logger.log("byte1: "+(bytes[1]&0xFF), Logger.WS_PARSE);
-
-                pointer = 2;
-                break;
-            case 1:
-                bytes[1] = (byte)126;
-                bytes[2] = (byte)(messageLen>>8);
-                bytes[3] = (byte)(messageLen&0xFF);
+    @Override
+    public String toString() {
+        return "WEBSOCKET FRAME:\nOpCode: "+opcode+
+            "\npayload: "+payload.length+" bytes"+
+            "\nEND";
+    }
 
-                for (int i=1; i<4; i++) {
-                    Logger.log("byte"+i+": "+(bytes[i]&0xFF), Logger.WS_PARSE);
-                }
+    /**
+     * Packs an unmasked data frame with the fin flag set.
+     * @param op The opcode, TEXT or BINARY
+     * @param payload The payload
+     * @return The packed frame
+     */
+    static byte[] getDataFrame(OpCode op, byte[] payload) {
+        return pack(payload, op.code);
+    }
 
-                pointer = 4;
-                break;
-            case 2: // Due to limitations in java, we cannot fully support 8 bytes of payload length
-                bytes[1] = (byte)127;
-                bytes[9] = (byte)(messageLen&0xFF);
-                bytes[8] = (byte)((messageLen&0xFF00) >> 8);
-                bytes[7] = (byte)((messageLen&0xFF0000) >> 16);
-                bytes[6] = (byte)((messageLen&0xFF000000) >> 24);
+    /**
+     * Packs an unmasked frame into a buffer from the BufferPool, with no array in between.
+     * @param firstByte The fin flag, the reserved bits and the opcode
+     * @param payload The payload, between position and limit. Its position is not changed.
+     * @return The packed frame, between position and limit. The caller owns its single reference.
+     */
+    static PooledBuffer encode(int firstByte, ByteBuffer payload) {
+        int messageLen = payload.remaining();
+        PooledBuffer pooled = BufferPool.acquire(headerLength(messageLen) + messageLen);
+        ByteBuffer out = pooled.buffer;
+        putHeader(out, firstByte, messageLen);
+        out.put(payload.duplicate());
+        out.flip();
+        return pooled;
+    }
 
-                for (int i=1; i<10; i++) {
-                    Logger.log("byte"+i+": "+(bytes[i]&0xFF), Logger.WS_PARSE);
-                }
+    /**
+     * Packs an unmasked data frame with the fin flag set into a pooled buffer. See getDataFrame().
+     */
+    static PooledBuffer encodeDataFrame(OpCode op, ByteBuffer payload) {
+        return encode(0x80 | op.code, payload);
+    }
 
-                pointer = 10;
-                break;
-            default:
-                break;
-        }
+    /**
+     * Packs an unmasked fragment of a message into a pooled buffer.
+     * @param op TEXT or BINARY for the first fragment, CONTINUATION for the rest
+     * @param fin true for the last fragment
+     * @param payload The payload, between position and limit. Its position is not changed.
+     * @return The packed frame, between position and limit. The caller owns its single reference.
+     */
+    static PooledBuffer encodeFragment(OpCode op, boolean fin, ByteBuffer payload) {
+        return encode((fin ? 0x80 : 0) | op.code, payload);
+    }
 
-        Logger.log("---END---", Logger.WS_PARSE);
+    /**
+     * Packs a compressed message as a single frame into a pooled buffer, with RSV1 set to tell the client it is compressed.
+     * @param op The opcode of the uncompressed message
+     * @param deflated The payload, compressed by PerMessageDeflate
+     * @return The packed frame, between position and limit. The caller owns its single reference.
+     */
+    static PooledBuffer encodeCompressedFrame(OpCode op, byte[] deflated) {
+        return encode(0xC0 | op.code, ByteBuffer.wrap(deflated));
+    }
 
-        // Writing the message as payload data
-        for (int i=0; i<messageLen; i++) {
-            bytes[pointer+i] = messageBytes[i];
-        }
+    /**
+     * Copies an already packed frame into a pooled buffer.
+     * @param frameBytes The packed frame
+     * @return The frame, between position and limit
+     */
+    static PooledBuffer encode(byte[] frameBytes) {
+        PooledBuffer pooled = BufferPool.acquire(frameBytes.length);
+        pooled.buffer.put(frameBytes);
+        pooled.buffer.flip();
+        return pooled;
+    }
 
+    /**
+     * @param buffer A buffer. Its position is not changed.
+     * @return A copy of the bytes between the buffer's position and limit
+     */
+    static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
         return bytes;
     }
 
-    @Override
-    public String toString() {
-        return "WEBSOCKET FRAME:\nOpCode: "+opcode+
-            "\nmessage: "+message+
-            "\nEND";
-    }
+    /**
+     * Packs a close frame. The payload is the status code, followed by the reason.
+     * @param code The status code, see RFC 6455 7.4
+     * @param reason The reason, at most 123 bytes when UTF-8 encoded
+     * @return The packed frame
+     */
+    static byte[] getCloseFrame(int code, String reason) {
+        byte[] reasonBytes = reason.getBytes(utf8);
+        int length = reasonBytes.length;
+        if (length > 123) {
+            // A control frame payload is at most 125 bytes. Do not cut in the middle of a character.
+            length = 123;
+            while(length > 0 && (reasonBytes[length] & 0xC0) == 0x80) {
+                length--;
+            }
+        }
+        byte[] payload = new byte[2 + length];
+        payload[0] = (byte)(code >> 8);
+        payload[1] = (byte)code;
+        System.arraycopy(reasonBytes, 0, payload, 2, length);
 
-    static byte[] getCloseFrame(String reason) {
-        byte[] messageBytes = reason.getBytes(utf8);
+        return pack(payload, OpCode.CONNECTION_CLOSE.code);
+    }
 
-        return pack(messageBytes, OpCode.CONNECTION_CLOSE.code, null);
+    /**
+     * Packs a ping carrying a time stamp. The client echoes the payload in its pong, so the pong tells which ping it answers.
+     * @param stamp The System.nanoTime() the ping is sent at
+     * @return The packed frame
+     */
+    static byte[] getPingFrame(long stamp) {
+        byte[] payload = new byte[8];
+        ByteBuffer.wrap(payload).putLong(stamp);
+        return pack(payload, OpCode.PING.code);
     }
 
     static byte[] getPongFrame(byte[] pingBytes) {
-        return pack(pingBytes, OpCode.PONG.code, null);        
+        return pack(pingBytes, OpCode.PONG.code);        
     }
 
     enum OpCode {
@@ -0,0 +1,161 @@
+package jaws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameParser.java
+ *
+ * Incremental frame parser used by both engines.
+ * Bytes are fed to the parser as they arrive from the socket, in chunks of any size, from a buffer the engine reuses.
+ * The parser keeps the state of a partially recieved frame between calls, so no thread is ever blocked waiting for the rest of a frame.
+ * The header is collected in a fixed array, so the payload array is the only allocation made for a frame. It is unmasked in place.
+ * <p>
+ * The length of a frame is checked against the limit as soon as the header is complete, before anything is allocated for it.
+ */
+class FrameParser {
+
+    private static final int MAX_HEADER_LENGTH = 14; // 2 bytes, 8 bytes of extended length and 4 bytes of mask
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    static final int MAX_ARRAY = Integer.MAX_VALUE - 8; // The largest array the JVM can be relied on to allocate
+
+    private final byte[] header = new byte[MAX_HEADER_LENGTH];
+    private int headerPos = 0;
+    private int headerLength = 2; // Grows once the second byte tells us about extended length and mask
+
+    private final int maxChunkSize;
+    private final long chunkAbove; // Frames larger than this are handed out in chunks
+    private final long maxFrameSize;
+
+    private boolean inPayload = false;
+    private long frameRemaining; // Payload bytes of the current frame not yet handed out
+    private long frameOffset; // Payload bytes of the current frame already handed out. Tells us where in the mask to continue.
+    private byte[] chunk; // null until we know how much of the payload goes in the next chunk
+    private int chunkPos;
+
+    /**
+     * Creates a parser that hands out every frame whole.
+     */
+    FrameParser() {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a parser that hands out data frames larger than <code>chunkAbove</code> in pieces of <code>maxChunkSize</code>,
+     * and smaller frames whole.
+     * The first piece keeps the opcode of the frame, and the rest are given as CONTINUATION frames, with fin set only on the last one.
+     * This is the same message as the client sent, split in more fragments, so no more than one chunk of a frame is ever held in memory.
+     * @param maxChunkSize The largest payload to hand out at a time, for frames that are split. Control frames are never split.
+     * @param chunkAbove Frames with a larger payload are split
+     * @param maxFrameSize Frames with a larger payload are refused with status 1009
+     */
+    FrameParser(int maxChunkSize, long chunkAbove, long maxFrameSize) {
+        this.maxChunkSize = Math.max(MAX_CONTROL_PAYLOAD, maxChunkSize);
+        this.chunkAbove = Math.max(MAX_CONTROL_PAYLOAD, chunkAbove);
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Consumes bytes from <code>in</code> until a frame, or a chunk of one, is complete, or the buffer is empty.
+     * @param in Bytes recieved from the client. The position is advanced past the consumed bytes.
+     * @return The next complete frame, or null if more bytes are needed
+     * @throws IOException If the frame is invalid, or can not be represented
+     */
+    Frame parse(ByteBuffer in) throws IOException {
+        if (!inPayload) {
+            while (headerPos < headerLength) {
+                if (!in.hasRemaining()) {
+                    return null;
+                }
+                header[headerPos++] = in.get();
+
+                if (headerPos == 2) {
+                    int len = header[1]&0x7F;
+                    if (len == 126) {
+                        headerLength += 2;
+                    }
+                    else if (len == 127) {
+                        headerLength += 8;
+                    }
+                    if ((header[1]&0x80) != 0) {
+                        headerLength += 4;
+                    }
+                }
+            }
+
+            frameRemaining = payloadLength();
+            frameOffset = 0;
+            if (frameRemaining < 0) {
+                throw new CloseException(CloseException.PROTOCOL_ERROR, "The most significant bit of a payload length must be 0");
+            }
+            if ((header[0]&0x08) != 0 && (frameRemaining > MAX_CONTROL_PAYLOAD || (header[0]&0x80) == 0)) {
+                throw new CloseException(CloseException.PROTOCOL_ERROR, "Control frames must be final, and carry at most "+MAX_CONTROL_PAYLOAD+" bytes");
+            }
+            if (frameRemaining > maxFrameSize || (frameRemaining > MAX_ARRAY && frameRemaining <= chunkAbove)) {
+                throw new CloseException(CloseException.MESSAGE_TOO_BIG, "Frame payload of "+frameRemaining+" bytes is too large");
+            }
+            Logger.log("Message length: {}", frameRemaining, Logger.WS_PARSE);
+            inPayload = true;
+        }
+
+        if (chunk == null) {
+            // A frame that is split is split from the start, so frameOffset and frameRemaining add up to its length
+            boolean split = frameOffset + frameRemaining > chunkAbove;
+            chunk = new byte[(int)(split ? Math.min(frameRemaining, maxChunkSize) : frameRemaining)];
+            chunkPos = 0;
+        }
+
+        int n = Math.min(in.remaining(), chunk.length - chunkPos);
+        in.get(chunk, chunkPos, n);
+        chunkPos += n;
+
+        if (chunkPos < chunk.length) {
+            return null;
+        }
+
+        if ((header[1]&0x80) != 0) {
+            int m = headerLength - 4;
+            int mask = (header[m]&0xFF) << 24 | (header[m+1]&0xFF) << 16 | (header[m+2]&0xFF) << 8 | (header[m+3]&0xFF);
+            // Continue where the previous chunk left off in the mask
+            Frame.unmask(chunk, chunk.length, Integer.rotateLeft(mask, 8 * (int)(frameOffset & 3)));
+        }
+
+        boolean first = frameOffset == 0;
+        frameOffset += chunk.length;
+        frameRemaining -= chunk.length;
+        boolean last = frameRemaining == 0;
+
+        Frame f = new Frame(
+                last && (header[0]&0x80) != 0,
+                first && (header[0]&0x40) != 0,
+                first ? header[0]&0x0F : Frame.OpCode.CONTINUATION.code,
+                chunk);
+
+        chunk = null;
+        if (last) {
+            headerPos = 0;
+            headerLength = 2;
+            inPayload = false;
+        }
+        return f;
+    }
+
+    private long payloadLength() {
+        long len = header[1]&0x7F;
+        int numPayloadbytes = 0;
+        if (len == 126) {
+            numPayloadbytes = 2;
+        }
+        else if (len == 127) {
+            numPayloadbytes = 8;
+        }
+
+        if (numPayloadbytes > 0) {
+            len = 0;
+            for (int i=0; i<numPayloadbytes; i++) {
+                len = (len << 8) | (header[2+i]&0xFF);
+            }
+        }
+        return len;
+    }
+}
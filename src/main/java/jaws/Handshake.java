@@ -0,0 +1,203 @@
+package jaws;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Handshake.java
+ *
+ * An HTTP upgrade request, parsed as the bytes arrive.
+ * Used by both engines. Bytes are fed to the object in chunks of any size, and it tells when the empty line ending the headers is seen.
+ * Header lines are split on the bytes themselves, and only names and values are turned into strings.
+ */
+class Handshake {
+
+    static final int MAX_SIZE = 8192;
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    // MessageDigest is not thread safe, and handshakes are done on many threads at once. The digests are shared by all of them,
+    // not kept per thread, as the virtual thread engine does every handshake on a new thread.
+    private static final Queue<MessageDigest> sha1Pool = new ConcurrentLinkedQueue<MessageDigest>();
+    private static final int MAX_POOLED = 64;
+
+    private byte[] buffer = new byte[512]; // Grows up to MAX_SIZE
+    private int length = 0;
+    private int lineStart = 0;
+    private boolean complete = false;
+
+    private String method;
+    private String target;
+    private final HashMap<String, String> headers = new HashMap<String, String>();
+
+    /**
+     * Consumes bytes until the end of the request headers, or until the buffer is empty.
+     * Bytes after the headers are left in the buffer, as they belong to the first frame.
+     * @param in Bytes recieved from the client
+     * @return true once the whole request is recieved
+     * @throws IOException If the request is too large or malformed
+     */
+    boolean feed(ByteBuffer in) throws IOException {
+        while(!complete && in.hasRemaining()) {
+            if (length == buffer.length) {
+                if (length == MAX_SIZE) {
+                    throw new IOException("Handshake larger than "+MAX_SIZE+" bytes");
+                }
+                buffer = Arrays.copyOf(buffer, Math.min(MAX_SIZE, length * 2));
+            }
+            byte b = in.get();
+            buffer[length++] = b;
+
+            if (b == '\n') {
+                int lineEnd = length - 1;
+                if (lineEnd > lineStart && buffer[lineEnd-1] == '\r') {
+                    lineEnd--;
+                }
+                if (lineEnd == lineStart) {
+                    complete = true;
+                    if (method == null) {
+                        throw new IOException("Empty request");
+                    }
+                }
+                else {
+                    parseLine(lineStart, lineEnd);
+                }
+                lineStart = length;
+            }
+        }
+        if (complete) {
+            buffer = null; // Not needed any more
+        }
+        return complete;
+    }
+
+    private void parseLine(int start, int end) throws IOException {
+        if (method == null) {
+            // Request line: METHOD SP TARGET SP VERSION
+            int sp1 = indexOf(' ', start, end);
+            int sp2 = sp1 < 0 ? -1 : indexOf(' ', sp1+1, end);
+            if (sp2 < 0) {
+                throw new IOException("Malformed request line");
+            }
+            method = string(start, sp1);
+            target = string(sp1+1, sp2);
+            return;
+        }
+
+        int colon = indexOf(':', start, end);
+        if (colon <= start) {
+            throw new IOException("Malformed header line");
+        }
+        int valueStart = colon + 1;
+        while(valueStart < end && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while(valueEnd > valueStart && (buffer[valueEnd-1] == ' ' || buffer[valueEnd-1] == '\t')) {
+            valueEnd--;
+        }
+
+        String name = string(start, colon).toLowerCase();
+        String value = string(valueStart, valueEnd);
+        // A repeated header is the same as a single comma separated list
+        headers.merge(name, value, (a, b) -> a+", "+b);
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i=from; i<to; i++) {
+            if (buffer[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private String string(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    String method() {
+        return method;
+    }
+
+    /**
+     * @return The request target, such as /chat?room=1
+     */
+    String target() {
+        return target;
+    }
+
+    /**
+     * @param name The name of a parameter in the query of the request target
+     * @return The decoded value of its first occurrence, or null if the target has no such parameter
+     */
+    String queryParameter(String name) {
+        int q = target != null ? target.indexOf('?') : -1;
+        if (q < 0) {
+            return null;
+        }
+        for (String pair : target.substring(q+1).split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (key.equals(name)) {
+                String value = eq < 0 ? "" : pair.substring(eq+1);
+                try {
+                    return URLDecoder.decode(value, "UTF-8");
+                }
+                catch(UnsupportedEncodingException | IllegalArgumentException e) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name The header name, in lower case
+     * @return The header value, or null if the header was not sent
+     */
+    String header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return true if this is a valid websocket upgrade request
+     */
+    boolean isUpgrade() {
+        String upgrade = header("upgrade");
+        String connection = header("connection");
+        return
+            "GET".equals(method) &&
+            upgrade != null && upgrade.equalsIgnoreCase("websocket") &&
+            connection != null && connection.toLowerCase().contains("upgrade") &&
+            header("sec-websocket-key") != null;
+    }
+
+    /**
+     * @return The Sec-WebSocket-Accept value for this request
+     */
+    String acceptKey() {
+        MessageDigest sha1 = sha1Pool.poll();
+        if (sha1 == null) {
+            try {
+                sha1 = MessageDigest.getInstance("SHA-1");
+            }
+            catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 is required by every Java platform", e);
+            }
+        }
+        byte[] digest = sha1.digest((header("sec-websocket-key")+GUID).getBytes(StandardCharsets.ISO_8859_1)); // Also resets it
+        if (sha1Pool.size() < MAX_POOLED) {
+            sha1Pool.add(sha1);
+        }
+        return Base64.getEncoder().encodeToString(digest);
+    }
+}
@@ -0,0 +1,129 @@
+package jaws;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram.java
+ *
+ * A fixed size latency histogram that many threads can record into without locking.
+ * Values below 128 are counted exactly. Above that, every power of two is split in 64 buckets,
+ * so a reported percentile is never more than 1/64 (about 1.6%) above the true value. Values above 2^36 are counted as 2^36.
+ * <p>
+ * The counts are striped over a few arrays picked by thread, so threads recording at the same time rarely write to the same cache line.
+ * Reading sums the stripes, and is meant for the occasional snapshot, not for every record.
+ */
+class Histogram {
+
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR + 30 * SUB_BUCKETS;
+    private static final long MAX_VALUE = 1L << 36;
+
+    private static final int STRIPES = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    Histogram() {
+        for (int i=0; i<STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * @param value The value to record. Negative values are counted as 0.
+     */
+    void record(long value) {
+        int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+        stripes[stripe].incrementAndGet(index(Math.max(0, Math.min(value, MAX_VALUE))));
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int)((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return The largest value that is counted in the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    private long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i=0; i<BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    long count() {
+        long n = 0;
+        for (long c : counts()) {
+            n += c;
+        }
+        return n;
+    }
+
+    /**
+     * @param percentile From 0 to 100
+     * @return The value at the percentile, or 0 if nothing is recorded
+     */
+    long percentile(double percentile) {
+        return percentile(counts(), percentile);
+    }
+
+    private static long percentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) return 0;
+
+        long wanted = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i=0; i<counts.length; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(counts.length - 1);
+    }
+
+    long max() {
+        return percentile(100);
+    }
+
+    /**
+     * @return The count and percentiles, all from the same read of the counts
+     */
+    LatencySummary summary() {
+        long[] counts = counts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        return new LatencySummary(total,
+                percentile(counts, 50), percentile(counts, 99), percentile(counts, 99.9), percentile(counts, 100));
+    }
+
+    void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i=0; i<BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+    }
+}
@@ -1,11 +1,29 @@
 package jaws;
 
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.io.*;
 import java.util.*;
-import java.security.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * JaWS.java
@@ -19,66 +37,384 @@ import java.security.*;
  * jawsServer.start();<br>
  * </code>
  * This way you don't risk loosing any messages.
+ * <p>
+ * The server can run on one of three engines, chosen when it is created. See Engine.
+ * Whatever the engine, event handler calls are made on the event executor, see setEventExecutor().
+ * <p>
+ * With the NIO engine the server is sharded: every selector loop has its own registry of connections, and large broadcasts are
+ * queued to the connections of each loop in parallel. Several acceptor threads can share the port, see JaWS(int, Engine, int, int).
  */
 public class JaWS extends Thread {
+
+    /**
+     * How a JaWS-object moves bytes to and from its clients.
+     * The WebSocketEventHandler sees no difference between the engines.
+     */
+    public enum Engine {
+        /**
+         * Every connection gets a thread blocking on its socket. Simple, but every client costs a thread and its stack.
+         */
+        THREAD_PER_CONNECTION,
+        /**
+         * Connections are accepted through a ServerSocketChannel, and a small, fixed set of selector loops read, parse and write
+         * for all of them. A connection stays on the loop it is given, see LoopAssignment.
+         */
+        NIO,
+        /**
+         * Like THREAD_PER_CONNECTION, but the readers, the writers and the handshakes run on virtual threads, which need Java 21.
+         * A connection waiting for its client holds no platform thread, only a small stack on the heap, so idle connections cost little.
+         * On older JVMs THREAD_PER_CONNECTION is used instead, see getEngine().
+         */
+        VIRTUAL_THREAD_PER_CONNECTION
+    }
+
+    private static final int TIMER_TICK_MS = 100;
+
+    // Broadcasts to fewer connections than this are queued by the calling thread alone, as handing work to other threads costs more
+    private static final int PARALLEL_BROADCAST_MIN = 4096;
+
+    static final String BAD_REQUEST = "HTTP/1.1 400 Bad Request\r\n"+"Connection: close\r\n\r\n";
+
+    /** The query parameter of the upgrade request a client resumes with, such as /feed?resume=1234. See setJournal(). */
+    public static final String RESUME_PARAMETER = "resume";
+
     private final int PORT;
-    private final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private final Engine engine;
     private ServerSocket socketServer;
-    private Base64.Encoder b64encoder;
-    private MessageDigest sha1digester;
-    private ArrayList<Connection> connections;
-    private WebSocketEventHandler eventHandler;
+    private ServerSocketChannel[] serverChannels; // Only used by the NIO engine. One for each acceptor thread.
+    private EventLoop[] loops; // Only used by the NIO engine
+    private volatile LoopAssignment loopAssignment = LoopAssignment.roundRobin();
+    private final ExecutorService workerPool; // Writers for the thread per connection engines, and senders of streamed messages
+    private final ThreadFactory readerThreads; // Readers for the thread per connection engines
+    private final ConnectionRegistry connections = new ConnectionRegistry(); // Only used by the thread per connection engine
+    private final Topics topics = new Topics();
+    private volatile WebSocketEventHandler eventHandler;
+    private volatile Executor eventExecutor;
+    private final ExecutorService defaultEventExecutor;
+    private final AtomicLong pendingEvents = new AtomicLong(0);
+    private volatile int maxQueuedFrames = 4096;
+    private volatile int lowWatermark = 1024 * 1024;
+    private volatile int highWatermark = 4 * 1024 * 1024;
+    private volatile BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_NEWEST;
+    private volatile int handshakeTimeout = 10000;
+    private volatile int streamingChunkSize = 64 * 1024;
+    private volatile long maxFrameSize = Long.MAX_VALUE;
+    private volatile long maxMessageSize = Long.MAX_VALUE;
+    private volatile long spillThreshold = 0; // 0 if large messages are kept on the heap
+    private volatile Path spillDirectory; // null for the default temporary directory
+    private volatile PerMessageDeflate.Options deflateOptions; // null while compression is disabled
+    final Metrics metrics = new Metrics(this);
+    final TimingWheel timer = new TimingWheel(TIMER_TICK_MS, 512, "JaWS-timer"); // Keepalive pings and idle timeouts
+    private volatile int pingInterval = 0; // Milliseconds. 0 if keepalive pings are disabled.
+    private volatile int maxMissedPongs = 3;
+    private volatile int idleTimeout = 0; // Milliseconds. 0 if idle connections are kept open.
+    private volatile int writeLinger = 0; // Microseconds. 0 to write as soon as a frame is queued.
+    private ObjectName mbeanName; // null if the metrics could not be registered with JMX
+    private volatile Relay relay; // null unless linked to other servers
+    private byte[] relaySecret; // null if relay links are not authenticated
+    private volatile LastValueCache lastValues; // null unless enabled
+    private volatile Journal journal; // null unless enabled
 
     private volatile boolean running = true;
 
     /**
+     * Creates a server using Engine.THREAD_PER_CONNECTION.
      * @param port The transport layer port to listen on
      */
     public JaWS(int port) {
+        this(port, Engine.THREAD_PER_CONNECTION);
+    }
+
+    /**
+     * Creates a server using the given engine. The NIO engine gets one selector loop per available processor.
+     * @param port The transport layer port to listen on
+     * @param engine The engine to use
+     */
+    public JaWS(int port, Engine engine) {
+        this(port, engine, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param port The transport layer port to listen on
+     * @param engine The engine to use
+     * @param ioThreads The number of selector loops for the NIO engine. Ignored by other engines.
+     */
+    public JaWS(int port, Engine engine, int ioThreads) {
+        this(port, engine, ioThreads, 1);
+    }
+
+    /**
+     * Creates a server that accepts connections on several threads, for hosts where a single thread can not accept them fast enough.
+     * Every acceptor has its own server socket bound to the port with SO_REUSEPORT, and the operating system spreads new connections
+     * between them. If SO_REUSEPORT is not supported, a single acceptor is used.
+     * @param port The transport layer port to listen on
+     * @param engine The engine to use
+     * @param ioThreads The number of selector loops for the NIO engine. Ignored by other engines.
+     * @param acceptors The number of acceptor threads for the NIO engine. Ignored by other engines.
+     */
+    public JaWS(int port, Engine engine, int ioThreads, int acceptors) {
+        ThreadFactory virtualWorkers = null;
+        ThreadFactory virtualReaders = null;
+        if (engine == Engine.VIRTUAL_THREAD_PER_CONNECTION) {
+            virtualWorkers = virtualThreadFactory("JaWS-worker");
+            virtualReaders = virtualThreadFactory("JaWS-reader");
+            if (virtualWorkers == null || virtualReaders == null) {
+                Logger.logErr("Virtual threads need Java 21, using a platform thread per connection", Logger.GENERAL);
+                engine = Engine.THREAD_PER_CONNECTION;
+            }
+        }
         this.PORT = port;
+        this.engine = engine;
         socketServer = null;
         try {
-            socketServer = new ServerSocket(PORT);
+            if (engine == Engine.NIO) {
+                serverChannels = openServerChannels(Math.max(1, acceptors));
+                socketServer = serverChannels[0].socket();
+
+                loops = new EventLoop[Math.max(1, ioThreads)];
+                for (int i=0; i<loops.length; i++) {
+                    loops[i] = new EventLoop(this, i);
+                }
+            }
+            else {
+                // Through a channel, so the writers can do gathering writes to the sockets it accepts
+                socketServer = ServerSocketChannel.open().bind(new InetSocketAddress(PORT)).socket();
+            }
         }
         catch (IOException e) {
             e.printStackTrace();
+            socketServer = null;
+        }
+
+        if (engine == Engine.VIRTUAL_THREAD_PER_CONNECTION) {
+            workerPool = threadPerTaskExecutor(virtualWorkers);
+            readerThreads = virtualReaders;
+        }
+        else {
+            workerPool = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "JaWS-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            readerThreads = r -> {
+                Thread t = new Thread(r, "JaWS-reader");
+                t.setDaemon(true);
+                return t;
+            };
         }
+        defaultEventExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "JaWS-event");
+            t.setDaemon(true);
+            return t;
+        });
+        eventExecutor = defaultEventExecutor;
 
-        connections = new ArrayList<Connection>();
+        registerMBean();
+    }
 
-        // Utilities
-        b64encoder = Base64.getEncoder();
+    /**
+     * Creates virtual threads. Looked up through reflection, so JaWS still builds and runs on JVMs without them.
+     * @param name The name of the threads
+     * @return The factory, or null if the JVM has no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
         try {
-            sha1digester = MessageDigest.getInstance("SHA-1");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
         }
-        catch(NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        catch(ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return An executor that starts a new thread for every task, as virtual threads are cheap to create and are not meant to be pooled
+     */
+    private static ExecutorService threadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        }
+        catch(ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(factory);
+        }
+    }
+
+    /**
+     * Opens the server sockets of the acceptors. They share the port through SO_REUSEPORT.
+     */
+    private ServerSocketChannel[] openServerChannels(int acceptors) throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        if (acceptors > 1) {
+            if (!first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                Logger.log("SO_REUSEPORT is not supported, using a single acceptor", Logger.GENERAL);
+                acceptors = 1;
+            }
+            else {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+        }
+        first.bind(new InetSocketAddress(PORT));
+
+        ServerSocketChannel[] channels = new ServerSocketChannel[acceptors];
+        channels[0] = first;
+        // Bound to the port the first one got, in case we were asked for any free port
+        int boundPort = first.socket().getLocalPort();
+        for (int i=1; i<acceptors; i++) {
+            channels[i] = ServerSocketChannel.open();
+            channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channels[i].bind(new InetSocketAddress(boundPort));
+        }
+        return channels;
+    }
+
+    /**
+     * Makes the metrics visible to JMX clients, like jconsole, as jaws:type=Server,port=&lt;port&gt;.
+     */
+    private void registerMBean() {
+        try {
+            int port = socketServer != null ? socketServer.getLocalPort() : PORT;
+            ObjectName name = new ObjectName("jaws:type=Server,port="+port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            mbeanName = name;
+        }
+        catch(JMException e) {
+            Logger.logErr("Could not register metrics with JMX: {}", e.getMessage(), Logger.GENERAL);
         }
     }
 
-    synchronized void onMessage(Connection con, String message) {
-        if(eventHandler != null) {
-            eventHandler.onMessage(con, message);
+    /*
+     * Handler calls are posted to the mailbox of the connection, and run on the event executor.
+     * Calls for one connection are made in order, and calls for different connections in parallel.
+     */
+
+    void onTextMessage(Connection con, ByteBuffer message) {
+        con.mailbox.post(() -> {
+            WebSocketEventHandler eh = eventHandler;
+            if(eh != null) {
+                eh.onTextMessage(con, message);
+            }
+        });
+    }
+
+    void onBinaryMessage(Connection con, ByteBuffer message) {
+        con.mailbox.post(() -> {
+            WebSocketEventHandler eh = eventHandler;
+            if(eh != null) {
+                eh.onBinaryMessage(con, message);
+            }
+        });
+    }
+
+    void onMessageChunk(Connection con, ByteBuffer chunk, boolean binary, boolean last) {
+        con.mailbox.post(() -> {
+            WebSocketEventHandler eh = eventHandler;
+            if(eh instanceof StreamingEventHandler) {
+                ((StreamingEventHandler)eh).onMessageChunk(con, chunk, binary, last);
+            }
+        });
+    }
+
+    void onConnect(Connection con) {
+        con.mailbox.post(() -> {
+            WebSocketEventHandler eh = eventHandler;
+            if(eh != null) {
+                eh.onConnect(con);
+            }
+        });
+    }
+
+    void onDisconnect(Connection con) {
+        registryOf(con).remove(con);
+        topics.unsubscribeAll(con);
+        con.mailbox.post(() -> {
+            WebSocketEventHandler eh = eventHandler;
+            if(eh != null) {
+                eh.onDisconnect(con);
+            }
+        });
+    }
+
+    void onWritabilityChanged(Connection con, boolean writable) {
+        con.mailbox.post(() -> {
+            WebSocketEventHandler eh = eventHandler;
+            if (eh != null) {
+                eh.onWritabilityChanged(con, writable);
+            }
+        });
+    }
+
+    void onPong(Connection con) {
+        con.mailbox.post(() -> {
+            WebSocketEventHandler eh = eventHandler;
+            if (eh != null) {
+                eh.onPong(con);
+            }
+        });
+    }
+
+    /**
+     * @return A new mailbox for a connection, running on the current event executor
+     */
+    Mailbox newMailbox() {
+        return new Mailbox(eventExecutor, pendingEvents, metrics);
+    }
+
+    /**
+     * @param resumeAfter The sequence number the client resumes from, or -1
+     */
+    void addConnection(Connection con, long resumeAfter) {
+        metrics.acceptedConnections.increment();
+        Journal j = journal;
+        if (j != null && resumeAfter >= 0) {
+            boolean resumed = con.resume(j, null, resumeAfter, () -> registryOf(con).add(con));
+            (resumed ? metrics.resumes : metrics.failedResumes).increment();
+        }
+        else {
+            registryOf(con).add(con);
+        }
+        con.startTimers();
+        LastValueCache cache = lastValues;
+        if (cache != null && !con.isResumed()) {
+            // After it is in the registry, so it gets every broadcast newer than the values
+            metrics.replayedMessages.add(cache.replay(con, null));
         }
     }
 
-    synchronized void onConnect(Connection con) {
-        if(eventHandler != null) {
-            eventHandler.onConnect(con);
+    /**
+     * @return The registry of the loop owning the connection, or the only registry if there are no loops
+     */
+    private ConnectionRegistry registryOf(Connection con) {
+        if (con instanceof NioConnection) {
+            return ((NioConnection)con).loop.connections;
         }
+        return connections;
     }
 
-    synchronized void onDisconnect(Connection con) {
-        connections.remove(con);
-        if(eventHandler != null) {
-            eventHandler.onDisconnect(con);
+    /**
+     * @return The registry of every shard
+     */
+    private ConnectionRegistry[] registries() {
+        if (loops == null) {
+            return new ConnectionRegistry[] {connections};
         }
+        ConnectionRegistry[] registries = new ConnectionRegistry[loops.length];
+        for (int i=0; i<loops.length; i++) {
+            registries[i] = loops[i].connections;
+        }
+        return registries;
     }
 
-    synchronized void onPong(Connection con) {
-        if (eventHandler != null) {
-            eventHandler.onPong(con);
+    /**
+     * @return A copy of the list of open connections
+     */
+    List<Connection> getConnections() {
+        List<Connection> list = new ArrayList<Connection>();
+        for (ConnectionRegistry registry : registries()) {
+            Collections.addAll(list, registry.snapshot());
         }
+        return list;
     }
 
     /**
@@ -88,15 +424,37 @@ public class JaWS extends Thread {
      */
     public synchronized void close() {
         try {
+            // Close all threads. Closing removes the connection from the list, so we work on a copy.
+            List<Connection> open = getConnections();
             running = false;
 
-            // Close all threads
-            synchronized(connections) {
-                for (int i=0; i<connections.size(); i++) {
-                    connections.get(i).close("Server shutting down");
-                }
+            for (Connection c : open) {
+                c.close("Server shutting down");
             }
             socketServer.close();
+            if (serverChannels != null) {
+                for (ServerSocketChannel channel : serverChannels) {
+                    channel.close();
+                }
+            }
+
+            if (loops != null) {
+                for (EventLoop loop : loops) {
+                    loop.shutdown();
+                }
+            }
+            if (relay != null) {
+                relay.close();
+            }
+            setLastValueCache(0);
+            workerPool.shutdown();
+            defaultEventExecutor.shutdown();
+            timer.stop();
+
+            if (mbeanName != null) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                mbeanName = null;
+            }
         } catch(Exception e) {
             e.printStackTrace();
         }
@@ -105,118 +463,988 @@ public class JaWS extends Thread {
 
     /**
      * Broadcast a message to all connected clients.
+     * The message is encoded to a frame once, and the same bytes are queued for every connection.
+     * With the NIO engine, the loops queue the message for their own connections in parallel. The call returns once it is queued for all.
+     * With a relay, the message is also sent to the clients of the other servers, see enableRelay().
+     * @param message The message to send.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long broadcast(String message) {
+        return broadcast(message, null);
+    }
+
+    /**
+     * Broadcast a message to all connected clients, with a conflation key.
+     * To a client that is too slow to keep up, a newer message with the same key replaces this one, if the policy is CONFLATE.
      * @param message The message to send.
+     * @param conflationKey Identifies what the message is about, such as the name of a stock. May be null.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long broadcast(String message, Object conflationKey) {
+        Logger.log("Broadcasting: {}", message, Logger.WS_IO);
+        return broadcastShared(new SharedMessage(Frame.OpCode.TEXT, message.getBytes(StandardCharsets.UTF_8)), conflationKey);
+    }
+
+    /**
+     * Broadcast a binary message to all connected clients.
+     * The message is encoded to a frame once, and the same bytes are queued for every connection.
+     * @param message The message to send. The bytes between position and limit are sent, and the position is not changed.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
      */
-    public void broadcast(String message) {
-        synchronized(connections) {
-            for (Connection c : connections) {
-                c.send(message);
+    public long broadcast(ByteBuffer message) {
+        return broadcast(message, null);
+    }
+
+    /**
+     * Broadcast a binary message to all connected clients, with a conflation key. See broadcast(String, Object).
+     * @param message The message to send. The bytes between position and limit are sent, and the position is not changed.
+     * @param conflationKey Identifies what the message is about. May be null.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long broadcast(ByteBuffer message, Object conflationKey) {
+        Logger.log("Broadcasting {} bytes of binary data", message.remaining(), Logger.WS_IO);
+        return broadcastShared(new SharedMessage(Frame.OpCode.BINARY, Frame.toArray(message)), conflationKey);
+    }
+
+    /**
+     * Broadcast a text message that is already encoded, such as one recieved through onTextMessage(), without decoding it.
+     * @param utf8 The message as UTF-8. It is not checked. The bytes between position and limit are sent, and the position is not changed.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long broadcastText(ByteBuffer utf8) {
+        return broadcastShared(new SharedMessage(Frame.OpCode.TEXT, Frame.toArray(utf8)), null);
+    }
+
+    /**
+     * Broadcast a frame that is already encoded, for callers that send the same message many times.
+     * @param preEncodedFrame A complete, unmasked frame, as returned from encodeFrame(). The array is copied, and may be reused.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long broadcastFrame(byte[] preEncodedFrame) {
+        return broadcastShared(new SharedMessage(preEncodedFrame), null);
+    }
+
+    private long broadcastShared(SharedMessage message, Object conflationKey) {
+        try {
+            journal(null, message);
+            Relay r = relay;
+            if (r != null) {
+                // First, so the other servers work on it while we queue it for our own clients
+                r.publish(Frame.toArray(message.frame().buffer), conflationKey);
+            }
+            sendCached(null, conflationKey, message, () -> fanOut(message, conflationKey));
+            return message.sequence;
+        }
+        finally {
+            message.release(); // Every connection holds its own reference by now, and the cache its own
+        }
+    }
+
+    /**
+     * Gives a message its sequence number, and keeps it in the journal, if the journal is enabled.
+     * Done before the message is sent to anyone, so every connection can tell if it was caught up with it already.
+     */
+    private void journal(String topic, SharedMessage message) {
+        Journal j = journal;
+        if (j == null) {
+            return;
+        }
+        try {
+            message.topic = topic;
+            message.sequence = j.append(topic, message.frame().buffer);
+        }
+        catch(IOException e) {
+            Logger.logErr("Could not write message to the journal: {}", e.getMessage(), Logger.GENERAL);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a message, and makes it the last value of its key if the last value cache is enabled.
+     * The message is sent under the lock of the value, so clients replayed the value at the same time get this one after the old one.
+     * @param topic The topic, or null for a broadcast
+     * @param key The conflation key, or null if the message is not cached
+     * @param message The message
+     * @param send Queues the message for the current clients
+     */
+    private void sendCached(String topic, Object key, SharedMessage message, Runnable send) {
+        LastValueCache cache = lastValues;
+        if (cache == null || key == null) {
+            send.run();
+            return;
+        }
+        LastValueCache.Value value = cache.value(topic, key);
+        List<LastValueCache.Value> evicted;
+        value.lock.lock();
+        try {
+            evicted = cache.set(value, message);
+            send.run();
+        }
+        finally {
+            value.lock.unlock();
+        }
+        metrics.evictedValues.add(evicted.size());
+        cache.release(evicted);
+    }
+
+    private void fanOut(SharedMessage message, Object conflationKey) {
+        ConnectionRegistry[] registries = registries();
+        if (registries.length == 1 || getNumberOfConnections() < PARALLEL_BROADCAST_MIN) {
+            for (ConnectionRegistry registry : registries) {
+                sendShared(registry.snapshot(), message, conflationKey);
+            }
+            return;
+        }
+
+        // One task per loop on the worker pool, and the last one on this thread.
+        // We wait for all of them, so the message is queued before anything the caller sends after the broadcast.
+        CountDownLatch done = new CountDownLatch(registries.length - 1);
+        for (int i=0; i<registries.length-1; i++) {
+            Connection[] shard = registries[i].snapshot();
+            Runnable task = () -> {
+                try {
+                    sendShared(shard, message, conflationKey);
+                }
+                finally {
+                    done.countDown();
+                }
+            };
+            try {
+                workerPool.execute(task);
+            }
+            catch(RejectedExecutionException e) {
+                task.run(); // Shutting down
+            }
+        }
+        sendShared(registries[registries.length-1].snapshot(), message, conflationKey);
+
+        // The tasks must be done with the message before it is released, so an interrupt is only passed on
+        boolean interrupted = false;
+        while(true) {
+            try {
+                done.await();
+                break;
+            }
+            catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sendShared(Connection[] shard, SharedMessage message, Object conflationKey) {
+        for (Connection c : shard) {
+            c.sendShared(message, conflationKey);
+        }
+    }
+
+    /**
+     * Subscribe a connection to a topic, so it gets the messages published to it. The subscription ends when the connection closes.
+     * Topics exist as long as they have subscribers, and need not be created.
+     * @param con The connection
+     * @param topic The name of the topic, such as a chat room or a stock
+     * @return true if the connection was not already subscribed
+     */
+    public boolean subscribe(Connection con, String topic) {
+        if (!topics.subscribe(con, topic)) {
+            return false;
+        }
+        LastValueCache cache = lastValues;
+        if (cache != null) {
+            // After the subscription is made, so it gets every message newer than the values
+            metrics.replayedMessages.add(cache.replay(con, topic));
+        }
+        return true;
+    }
+
+    /**
+     * Subscribe a connection to a topic, and send it the messages published to the topic after a sequence number from the journal,
+     * before any new ones. See setJournal(). If the journal no longer holds all of them, none are sent, and the subscription
+     * is made as with subscribe(Connection, String). A connection already subscribed gets the messages again.
+     * @param con The connection
+     * @param topic The name of the topic
+     * @param afterSequence The sequence number of the last message of the topic the client got
+     * @return true if the client was sent every message it missed
+     */
+    public boolean subscribe(Connection con, String topic, long afterSequence) {
+        Journal j = journal;
+        if (j == null) {
+            subscribe(con, topic);
+            return false;
+        }
+        boolean resumed = con.resume(j, topic, afterSequence, () -> topics.subscribe(con, topic));
+        (resumed ? metrics.resumes : metrics.failedResumes).increment();
+        LastValueCache cache = lastValues;
+        if (cache != null && !resumed) {
+            metrics.replayedMessages.add(cache.replay(con, topic));
+        }
+        return resumed;
+    }
+
+    /**
+     * @param con The connection
+     * @param topic The name of the topic
+     * @return true if the connection was subscribed
+     */
+    public boolean unsubscribe(Connection con, String topic) {
+        con.liveFrom(topic, 0);
+        return topics.unsubscribe(con, topic);
+    }
+
+    /**
+     * Send a message to the subscribers of a topic.
+     * The message is encoded to a frame once, and the same bytes are queued for every subscriber, as for broadcast().
+     * Publishing never waits for subscribes and unsubscribes, and they never wait for it. A connection that subscribes while
+     * a message is published may or may not get it. With a relay, the subscribers on the other servers get the message too.
+     * @param topic The name of the topic
+     * @param message The message to send
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long publish(String topic, String message) {
+        return publish(topic, message, null);
+    }
+
+    /**
+     * Send a message to the subscribers of a topic, with a conflation key.
+     * To a subscriber that is too slow to keep up, a newer message to the same topic with the same key replaces this one, if the
+     * policy is CONFLATE. With the last value cache enabled, the message is also kept, and sent to connections that subscribe later,
+     * until a newer message with the same key replaces it. See setLastValueCache().
+     * @param topic The name of the topic
+     * @param message The message to send
+     * @param conflationKey Identifies what the message is about within the topic, such as a field of a record. May be null.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long publish(String topic, String message, Object conflationKey) {
+        return publishShared(topic, new SharedMessage(Frame.OpCode.TEXT, message.getBytes(StandardCharsets.UTF_8)), conflationKey);
+    }
+
+    /**
+     * Send a binary message to the subscribers of a topic. See publish(String, String).
+     * @param topic The name of the topic
+     * @param message The message to send. The bytes between position and limit are sent, and the position is not changed.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long publish(String topic, ByteBuffer message) {
+        return publish(topic, message, null);
+    }
+
+    /**
+     * Send a binary message to the subscribers of a topic, with a conflation key. See publish(String, String, Object).
+     * @param topic The name of the topic
+     * @param message The message to send. The bytes between position and limit are sent, and the position is not changed.
+     * @param conflationKey Identifies what the message is about within the topic. May be null.
+     * @return The sequence number of the message in the journal, or 0 if it is not journaled, see setJournal()
+     */
+    public long publish(String topic, ByteBuffer message, Object conflationKey) {
+        return publishShared(topic, new SharedMessage(Frame.OpCode.BINARY, Frame.toArray(message)), conflationKey);
+    }
+
+    /**
+     * @param topic The name of the topic
+     * @return The number of local connections subscribed to the topic
+     */
+    public int getSubscriberCount(String topic) {
+        return topics.subscribers(topic).length;
+    }
+
+    private long publishShared(String topic, SharedMessage message, Object conflationKey) {
+        metrics.publishedMessages.increment();
+        try {
+            journal(topic, message);
+            Relay r = relay;
+            if (r != null) {
+                r.publish(topic, Frame.toArray(message.frame().buffer), conflationKey);
             }
+            Object topicKey = conflationKey != null ? new LastValueCache.Key(topic, conflationKey) : null;
+            sendCached(topic, conflationKey, message, () -> sendShared(topics.subscribers(topic), message, topicKey));
+            return message.sequence;
+        }
+        finally {
+            message.release();
         }
     }
 
+    int getTopicCount() {
+        return topics.size();
+    }
+
+    /**
+     * Encode a message as a TEXT frame, ready to be given to broadcastFrame().
+     * @param message The message to encode
+     * @return The encoded frame
+     */
+    public static byte[] encodeFrame(String message) {
+        return Frame.getDataFrame(Frame.OpCode.TEXT, message.getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * Get the number of currently connected clients
      * @return The number of connected clients
      */
     public int getNumberOfConnections() {
-        synchronized(connections) {
+        if (loops == null) {
             return connections.size();
         }
+        int n = 0;
+        for (EventLoop loop : loops) {
+            n += loop.connections.size();
+        }
+        return n;
+    }
+
+    /**
+     * Get the engine the server runs on. This is the engine it was created with, unless that was VIRTUAL_THREAD_PER_CONNECTION
+     * and the JVM has no virtual threads, in which case it is THREAD_PER_CONNECTION.
+     * @return The engine
+     */
+    public Engine getEngine() {
+        return engine;
     }
 
     @Override
     public void run() {
         if (socketServer == null) return;
-        Logger.log("Server now listening on port " + PORT, Logger.GENERAL);
+        Logger.log("Server now listening on port {}", PORT, Logger.GENERAL);
+
+        if (engine == Engine.NIO) {
+            for (EventLoop loop : loops) {
+                loop.start();
+            }
+            // This thread is the first acceptor
+            for (int i=1; i<serverChannels.length; i++) {
+                ServerSocketChannel channel = serverChannels[i];
+                Thread acceptor = new Thread(() -> acceptLoop(channel), "JaWS-acceptor-"+i);
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+            acceptLoop(serverChannels[0]);
+        }
+        else {
+            acceptLoop(null);
+        }
+    }
 
+    /**
+     * Accepts connections until the server is closed.
+     * @param channel The server channel to accept from, or null to accept from the server socket of the thread per connection engine
+     */
+    private void acceptLoop(ServerSocketChannel channel) {
         while(running) {
             try {
-                // Waiting for connections
-                Socket socket = socketServer.accept();
-				Logger.log("Incomming connection ...", Logger.GENERAL);
-
-				ArrayList<String> httpReq = new ArrayList<String>();
-
-                BufferedReader in = new BufferedReader(
-                new InputStreamReader(socket.getInputStream()));
-
-                PrintWriter out = new PrintWriter(
-                new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
-
-                // Adding httpReq to string array
-                String s;
-                while((s=in.readLine()) != null) {
-                    if(s.isEmpty()) {
-                        break;
-                    }
-                    httpReq.add(s);
-                }
-
-                String upgrade = null;
-                String connection = null;
-                String wsKey = null;
-                for (String line : httpReq) {
-                    String[] parts = line.split(": ");
-                    if (parts.length == 1) {
-                        // Ignore the 'GET...' line
-                    }
-                    else {
-                        String key = parts[0];
-                        String val = parts[1];
-
-                        if(key.toLowerCase().contains("upgrade")) {
-                            upgrade = val;
-                        }
-                        else if(key.equalsIgnoreCase("connection")) {
-                            connection = val;
-                        }
-                        else if(key.equalsIgnoreCase("sec-websocket-key")) {
-                            wsKey = val;
-                        }
-                    }
-                }
-
-                if (
-                    upgrade != null && upgrade.equalsIgnoreCase("websocket") &&
-                    connection != null && connection.toLowerCase().contains("upgrade") &&
-                    wsKey != null)
-                {
-                    // Send handshake response
-                    String acceptKey = b64encoder.encodeToString(
-                            sha1digester.digest((wsKey+GUID).getBytes()));
-                    out.write(
-                        "HTTP/1.1 101 Switching Protocols\r\n"+
-                        "Upgrade: websocket\r\n"+
-                        "Connection: Upgrade\r\n"+
-                        "Sec-WebSocket-Accept: "+acceptKey+
-                        "\r\n\r\n");
-                    out.flush();
-
-                    Logger.log("Handshake sent, creating connection", Logger.GENERAL);
-                    Connection con= new Connection(this, socket);
-                    connections.add(con);
-                    con.start();
-
-                    if (eventHandler != null) {
-                        eventHandler.onConnect(con);
-                    }
+                if (channel != null) {
+                    acceptChannel(channel);
                 }
                 else {
-                    out.write("HTTPS/1.1 400 Bad Request\r\n"+"\r\n\r\n");
-                    out.flush();
+                    acceptSocket();
                 }
             }
             catch(SocketException e) {
-                if(!socketServer.isClosed()) {
+                if(running && !socketServer.isClosed()) {
                     e.printStackTrace();
                 }
                 // Else ignore. The program is terminating. All is well
             }
             catch(Exception e) {
-                e.printStackTrace();
+                if(running && !socketServer.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts a channel, and hands it to the selector loop chosen by the loop assignment. The handshake is done by the loop.
+     */
+    private void acceptChannel(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        Logger.log("Incomming connection ...", Logger.GENERAL);
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        int i = loopAssignment.select(loops.length, n -> loops[n].getChannels());
+        loops[Math.floorMod(i, loops.length)].register(channel);
+    }
+
+    /**
+     * Accepts a socket, and hands the handshake to the worker pool, so a slow client does not hold up the next one.
+     */
+    private void acceptSocket() throws IOException {
+        // Waiting for connections
+        Socket socket = socketServer.accept();
+        Logger.log("Incomming connection ...", Logger.GENERAL);
+
+        long acceptedAt = System.nanoTime();
+        workerPool.execute(() -> handshake(socket, acceptedAt));
+    }
+
+    private void handshake(Socket socket, long acceptedAt) {
+        try {
+            long deadline = System.currentTimeMillis() + handshakeTimeout;
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            Handshake handshake = new Handshake();
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            buffer.limit(0);
+            while(!handshake.feed(buffer)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException();
+                }
+                socket.setSoTimeout((int)remaining);
+
+                int n = in.read(buffer.array());
+                if (n < 0) {
+                    socket.close();
+                    return;
+                }
+                buffer.limit(n);
+                buffer.position(0);
+            }
+            socket.setSoTimeout(0);
+
+            Upgrade upgrade = upgrade(handshake);
+            if (upgrade == null) {
+                metrics.failedHandshakes.increment();
+                out.write(BAD_REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+                socket.close();
+                return;
             }
+
+            // Send handshake response
+            out.write(upgrade.response.getBytes(StandardCharsets.ISO_8859_1));
+            metrics.handshakeLatency.record((System.nanoTime() - acceptedAt) / 1000);
+
+            Logger.log("Handshake sent, creating connection", Logger.GENERAL);
+            // Anything left in the buffer is the start of the first frame
+            BlockingConnection con = new BlockingConnection(this, socket, buffer);
+            con.deflate = upgrade.deflate;
+            addConnection(con, upgrade.resumeAfter);
+            onConnect(con);
+            con.start();
+        }
+        catch(SocketTimeoutException e) {
+            Logger.log("Handshake timed out", Logger.GENERAL);
+            metrics.failedHandshakes.increment();
+            closeQuietly(socket);
+        }
+        catch(IOException e) {
+            Logger.log("Handshake failed: {}", e.getMessage(), Logger.GENERAL);
+            metrics.failedHandshakes.increment();
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch(IOException ignored) {
+            // Nothing more we can do
+        }
+    }
+
+    /**
+     * The result of a successful upgrade handshake.
+     */
+    static final class Upgrade {
+        final String response;
+        final PerMessageDeflate deflate; // null if compression was not agreed
+        final long resumeAfter; // The sequence number the client resumes from, or -1
+
+        Upgrade(String response, PerMessageDeflate deflate, long resumeAfter) {
+            this.response = response;
+            this.deflate = deflate;
+            this.resumeAfter = resumeAfter;
+        }
+    }
+
+    /**
+     * Checks an upgrade request, and creates the response to send if it is valid.
+     * @param handshake The complete request
+     * @return The handshake response and agreed extensions, or null if the request is not a valid websocket upgrade
+     */
+    Upgrade upgrade(Handshake handshake) {
+        if (!handshake.isUpgrade()) {
+            return null;
+        }
+
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate(handshake.header("sec-websocket-extensions"), deflateOptions);
+        String response =
+            "HTTP/1.1 101 Switching Protocols\r\n"+
+            "Upgrade: websocket\r\n"+
+            "Connection: Upgrade\r\n"+
+            "Sec-WebSocket-Accept: "+handshake.acceptKey()+"\r\n"+
+            (deflate != null ? "Sec-WebSocket-Extensions: "+deflate.responseHeader()+"\r\n" : "")+
+            "\r\n";
+        return new Upgrade(response, deflate, resumeAfter(handshake));
+    }
+
+    /**
+     * @return The sequence number in the resume parameter of the request, or -1 if there is none, or it is not a number
+     */
+    private static long resumeAfter(Handshake handshake) {
+        String value = handshake.queryParameter(RESUME_PARAMETER);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Long.parseLong(value));
+        }
+        catch(NumberFormatException e) {
+            Logger.log("Bad resume parameter: {}", value, Logger.GENERAL);
+            return -1;
+        }
+    }
+
+    /**
+     * Set how new connections are spread over the selector loops of the NIO engine. The default is LoopAssignment.roundRobin().
+     * @param assignment The strategy. Called by every acceptor thread, so it must be thread safe.
+     */
+    public void setLoopAssignment(LoopAssignment assignment) {
+        this.loopAssignment = assignment;
+    }
+
+    /**
+     * Set how long a client may take to send its upgrade request, from the connection is accepted.
+     * Clients that are too slow are disconnected, so idle or slow sockets can not tie up the server.
+     * Only affects connections accepted after the call.
+     * @param millis The timeout in milliseconds
+     */
+    public void setHandshakeTimeout(int millis) {
+        this.handshakeTimeout = millis;
+    }
+
+    int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Ping every connection at a fixed interval, and close connections that stop answering.
+     * A dead peer is then found within <code>intervalMillis * maxMissedPongs</code>, instead of when the operating system gives up on it.
+     * The round trip times are available in the metrics. All pings are sent from a single timer thread, however many connections there are.
+     * Only affects connections created after the call.
+     * @param intervalMillis Time between pings, in milliseconds. 0 disables the pings.
+     * @param maxMissedPongs The number of pings in a row that may go unanswered before the connection is closed
+     */
+    public void setKeepalive(int intervalMillis, int maxMissedPongs) {
+        this.pingInterval = Math.max(0, intervalMillis);
+        this.maxMissedPongs = Math.max(1, maxMissedPongs);
+    }
+
+    int getPingInterval() {
+        return pingInterval;
+    }
+
+    int getMaxMissedPongs() {
+        return maxMissedPongs;
+    }
+
+    /**
+     * Close connections that send nothing for a while. Pongs do not count, so a client that only answers keepalive pings is idle.
+     * Only affects connections created after the call.
+     * @param millis The timeout in milliseconds. 0 keeps idle connections open.
+     */
+    public void setIdleTimeout(int millis) {
+        this.idleTimeout = Math.max(0, millis);
+    }
+
+    int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Let frames wait a little before they are written, so more frames are written together.
+     * Frames queued for a connection are always written with a single gathering write when they can. Without a linger, the writer
+     * starts as soon as the first frame is queued, and a client that gets many small messages still costs a write, and often
+     * a TCP segment, for most of them. With a linger, the writer waits this long after the first frame, or until 64KB are queued.
+     * The NIO engine keeps time in whole milliseconds while it waits, so a short linger may last up to a millisecond.
+     * Should be set before start().
+     * @param micros The linger in microseconds. 0, the default, writes at once.
+     */
+    public void setWriteLinger(int micros) {
+        this.writeLinger = Math.max(0, micros);
+    }
+
+    int getWriteLinger() {
+        return writeLinger;
+    }
+
+    /**
+     * Set how many bytes may wait to be written to a single connection, before the backpressure policy applies.
+     * When the queued bytes reach the high watermark, the connection is no longer writable, and new messages are handled by the policy.
+     * It is writable again once the queue is drained to the low watermark. The event handler is told of both changes.
+     * Only affects connections created after the call.
+     * @param lowBytes The low watermark
+     * @param highBytes The high watermark
+     */
+    public void setOutboundWatermarks(int lowBytes, int highBytes) {
+        if (lowBytes < 0 || highBytes <= lowBytes) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high, was "+lowBytes+" and "+highBytes);
+        }
+        this.lowWatermark = lowBytes;
+        this.highWatermark = highBytes;
+    }
+
+    int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Set what happens to messages for a client that has reached the high watermark. The default is DROP_NEWEST.
+     * @param policy The policy
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy) {
+        this.backpressurePolicy = policy;
+    }
+
+    BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    /**
+     * Set how many frames may wait to be written to a single connection. Sending to a connection with a full queue fails.
+     * Only affects connections created after the call.
+     * @param frames The maximum number of queued frames per connection
+     */
+    public void setMaxQueuedFrames(int frames) {
+        this.maxQueuedFrames = frames;
+    }
+
+    /**
+     * Enable the permessage-deflate extension (RFC 7692) for clients that offer it. Only affects connections created after the call.
+     * <p>
+     * Turning off server context takeover costs some compression, but lets broadcasts be compressed once for all connections,
+     * instead of once per connection, and no Deflater is kept per connection between messages.
+     * The server always compresses with a 15 bit window.
+     * @param serverContextTakeover false to reset our compression context after every message
+     * @param clientContextTakeover false to ask clients to reset their compression context after every message
+     * @param clientMaxWindowBits The largest window, 8 to 15 bits, clients may compress with, if they let us choose
+     */
+    public void enablePerMessageDeflate(boolean serverContextTakeover, boolean clientContextTakeover, int clientMaxWindowBits) {
+        if (clientMaxWindowBits < PerMessageDeflate.MIN_WINDOW_BITS || clientMaxWindowBits > PerMessageDeflate.MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("Window bits must be between 8 and 15, was "+clientMaxWindowBits);
+        }
+        this.deflateOptions = new PerMessageDeflate.Options(serverContextTakeover, clientContextTakeover, clientMaxWindowBits);
+    }
+
+    /**
+     * Disable the permessage-deflate extension for new connections. This is the default.
+     */
+    public void disablePerMessageDeflate() {
+        this.deflateOptions = null;
+    }
+
+    /**
+     * Set the chunk size used when messages are streamed to a StreamingEventHandler.
+     * Frames larger than this are handed to the handler in pieces, so no more than this many bytes of a message are buffered.
+     * Only affects connections created after the call.
+     * @param bytes The largest chunk to give the handler. Values below 125 are raised to 125.
+     */
+    public void setStreamingChunkSize(int bytes) {
+        this.streamingChunkSize = bytes;
+    }
+
+    int getStreamingChunkSize() {
+        return streamingChunkSize;
+    }
+
+    /**
+     * Set the largest frame a client may send. A client that announces a larger frame is disconnected with status 1009,
+     * before any memory is set aside for it. Without a limit, a frame must still fit in an array, unless it is split,
+     * as it is for a StreamingEventHandler or when spilling.
+     * Only affects connections created after the call.
+     * @param bytes The largest payload of a single frame
+     */
+    public void setMaxFrameSize(long bytes) {
+        if (bytes < 125) {
+            throw new IllegalArgumentException("The frame size limit must be at least 125 bytes, was "+bytes);
+        }
+        this.maxFrameSize = bytes;
+    }
+
+    long getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Set the largest message a client may send, counting all its fragments, after decompression.
+     * A client that goes past it is disconnected with status 1009. This also applies to messages streamed to a StreamingEventHandler.
+     * Without a limit, a message must still fit in an array, or in a single mapped buffer when it is spilled.
+     * @param bytes The largest message
+     */
+    public void setMaxMessageSize(long bytes) {
+        if (bytes < 125) {
+            throw new IllegalArgumentException("The message size limit must be at least 125 bytes, was "+bytes);
+        }
+        this.maxMessageSize = bytes;
+    }
+
+    long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Keep large binary messages off the heap. A binary message that grows past the threshold is written to a temporary file
+     * as it arrives, and given to onBinaryMessage() as a read-only MappedByteBuffer of that file. The file is deleted at once,
+     * and its memory is given back when the buffer is garbage collected. Frames larger than the threshold are read in chunks,
+     * so the heap never holds more than about the threshold of a message. Text messages are always assembled on the heap,
+     * as they are given to the handler as strings, and a StreamingEventHandler gets its messages in chunks regardless.
+     * The file is written by the thread reading the connection, which for the NIO engine is a selector loop.
+     * Only affects connections created after the call.
+     * @param bytes The threshold. 0, the default, disables spilling.
+     * @param directory The directory to create files in, or null for the default temporary directory
+     */
+    public void setSpillThreshold(long bytes, Path directory) {
+        this.spillThreshold = Math.max(0, bytes);
+        this.spillDirectory = directory;
+    }
+
+    long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Link this server to other JaWS servers, so broadcasts reach the clients of all of them. See Relay.
+     * The relay listens for the relays of other servers on its own port, and links are made with addRelayPeer() from either end.
+     * Messages are passed on along the links, so the servers only need to be linked to each other through some path.
+     * Broadcasts recieved from other servers are queued for the local clients, but not compressed. Conflation keys are passed on
+     * if they are strings.
+     * <p>
+     * The relay listens on the loopback address only, for servers on the same host. See enableRelay(String, int) to link servers
+     * on other hosts.
+     * @param port The port to listen for other servers on, or 0 for any free port, see getRelayPort()
+     * @throws IOException If the port could not be bound
+     * @throws IllegalStateException If the relay is already enabled
+     */
+    public void enableRelay(int port) throws IOException {
+        enableRelay(null, port);
+    }
+
+    /**
+     * Like enableRelay(int), but listens on the given address. Any server that can reach it can send messages to every client,
+     * so servers that listen on a public interface should share a secret, see setRelaySecret().
+     * @param bindAddress The address to listen on, as "0.0.0.0" for all interfaces, or null for the loopback address
+     * @param port The port to listen for other servers on, or 0 for any free port, see getRelayPort()
+     * @throws IOException If the port could not be bound
+     * @throws IllegalStateException If the relay is already enabled
+     */
+    public synchronized void enableRelay(String bindAddress, int port) throws IOException {
+        if (relay != null) {
+            throw new IllegalStateException("The relay is already enabled");
+        }
+        relay = new Relay(this, InetAddress.getByName(bindAddress), Math.max(0, port), relaySecret);
+    }
+
+    /**
+     * Only link to relays that know the same secret. Both ends of a link prove they know it, without sending it, before any
+     * message is passed, and links to relays without it, or with another, are closed. Must be set on every server, before
+     * enableRelay() or addRelayPeer().
+     * @param secret The shared secret, or null to link to any relay, the default
+     * @throws IllegalStateException If the relay is already enabled
+     */
+    public synchronized void setRelaySecret(String secret) {
+        if (relay != null) {
+            throw new IllegalStateException("The relay is already enabled");
+        }
+        relaySecret = secret != null ? secret.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Keep a link to the relay of another server, and reconnect whenever it is lost. Enables a relay that does not listen, if
+     * enableRelay() has not been called. Every server may be given the same list of peers, as a link to itself is given up,
+     * and two servers that connect to each other keep only one of the links.
+     * @param host The host of the other server
+     * @param port The port its relay listens on
+     */
+    public synchronized void addRelayPeer(String host, int port) throws IOException {
+        if (relay == null) {
+            relay = new Relay(this, null, -1, relaySecret);
+        }
+        relay.connect(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Keep the last message sent with each conflation key, and send it to clients that join later, so they get the current state
+     * at once, without waiting for every key to change again. Messages broadcast with a key are sent to every new connection, and
+     * messages published to a topic with a key to every new subscriber of the topic. Messages without a key are not kept.
+     * <p>
+     * The frames packed for the original send are kept and queued as they are, so a snapshot costs no encoding, however many clients
+     * ask for it. When the messages kept take more than the limit, the ones that have gone longest without a newer value are dropped.
+     * Along with the CONFLATE policy, a client that falls behind ends up with the latest value of every key, and not every change.
+     * Replacing or disabling the cache drops the messages kept.
+     * @param maxBytes The most bytes of frames to keep. 0, the default, disables the cache.
+     */
+    public void setLastValueCache(long maxBytes) {
+        LastValueCache old;
+        synchronized(this) {
+            old = lastValues;
+            lastValues = maxBytes > 0 ? new LastValueCache(maxBytes) : null;
+        }
+        if (old != null) {
+            old.clear();
+        }
+    }
+
+    /**
+     * Keep every broadcast and every message published to a topic in a journal on disk, so clients that lose their connection
+     * can get what they missed instead of starting over. Every message is given the next sequence number, which broadcast()
+     * and publish() return. A client resumes by connecting with the last sequence number it got, as in /feed?resume=1234,
+     * and is sent the broadcasts after it from the journal before anything new. Connection.isResumed() tells if the journal
+     * still held all of them, or the client has to start over. Topics are resumed with subscribe(Connection, String, long).
+     * <p>
+     * The journal is a series of files mapped into memory. Messages are copied into them once, as they are sent, and the frames
+     * are written to a resuming client straight from the mapping, by a worker thread, so sending to everyone else is not held up.
+     * The oldest files are deleted when the journal takes more than maxBytes, or their messages are older than maxAgeMillis.
+     * The journal is read back when the server is started again, so clients resume across restarts, as long as they reconnect
+     * to the same server. The sequence numbers of servers linked by a relay are not the same.
+     * @param directory The directory to keep the journal in, or null to stop journaling
+     * @param maxBytes The most bytes to keep
+     * @param maxAgeMillis The most milliseconds to keep a message, or 0 for no limit
+     * @throws IOException If the directory could not be created, or the journal there could not be read
+     */
+    public synchronized void setJournal(Path directory, long maxBytes, long maxAgeMillis) throws IOException {
+        journal = directory != null ? new Journal(directory, maxBytes, maxAgeMillis) : null;
+    }
+
+    /**
+     * @return The sequence number of the newest message in the journal, or 0 if the journal is disabled or empty
+     */
+    public long getJournalSequence() {
+        Journal j = journal;
+        return j != null ? j.lastSequence() : 0;
+    }
+
+    long getJournalBytes() {
+        Journal j = journal;
+        return j != null ? j.bytes() : 0;
+    }
+
+    /**
+     * @return The number of values in the last value cache
+     */
+    int getCachedValues() {
+        LastValueCache cache = lastValues;
+        return cache != null ? cache.size() : 0;
+    }
+
+    /**
+     * @return The bytes of frames in the last value cache
+     */
+    long getCachedBytes() {
+        LastValueCache cache = lastValues;
+        return cache != null ? cache.bytes() : 0;
+    }
+
+    /**
+     * @return The port the relay listens on, or -1 if it is not enabled, or does not listen
+     */
+    public int getRelayPort() {
+        Relay r = relay;
+        return r != null ? r.getPort() : -1;
+    }
+
+    RelayMetrics relayMetrics() {
+        Relay r = relay;
+        return r != null ? r.metrics() : new RelayMetrics(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Queues a message recieved from another server for the local clients, and caches it as a message sent here would be.
+     * @param topic The topic it was published to, or null for a broadcast
+     * @param conflationKey The key it was sent with, or null
+     * @param frame The packed frame
+     */
+    void deliverRelayed(String topic, String conflationKey, byte[] frame) {
+        if (topic != null && topics.subscribers(topic).length == 0 && (conflationKey == null || lastValues == null) && journal == null) {
+            return;
+        }
+        SharedMessage message = new SharedMessage(frame);
+        try {
+            journal(topic, message);
+            if (topic == null) {
+                sendCached(null, conflationKey, message, () -> fanOut(message, conflationKey));
+            }
+            else {
+                Object topicKey = conflationKey != null ? new LastValueCache.Key(topic, conflationKey) : null;
+                sendCached(topic, conflationKey, message, () -> sendShared(topics.subscribers(topic), message, topicKey));
+            }
+        }
+        finally {
+            message.release();
+        }
+    }
+
+    /**
+     * @return true if the event handler wants large and fragmented messages in chunks
+     */
+    boolean isStreaming() {
+        return eventHandler instanceof StreamingEventHandler;
+    }
+
+    int getMaxQueuedFrames() {
+        return maxQueuedFrames;
+    }
+
+    ExecutorService getWorkerPool() {
+        return workerPool;
+    }
+
+    ThreadFactory getReaderThreads() {
+        return readerThreads;
+    }
+
+    /**
+     * Set the executor that runs event handler calls. By default, a fixed pool with one thread per available processor is used.
+     * Calls for a single connection are always made one at a time, in order, whatever executor is used.
+     * Only affects connections created after the call.
+     * @param executor The executor, for instance a pool sized for handlers that block, or one that starts a virtual thread per task
+     */
+    public void setEventExecutor(Executor executor) {
+        this.eventExecutor = executor;
+    }
+
+    /**
+     * Get the number of handler calls waiting to be made, for all connections.
+     * A number that keeps growing means the event handler can not keep up with the clients.
+     * @return The number of queued events
+     */
+    public long getPendingEvents() {
+        return pendingEvents.get();
+    }
+
+    /**
+     * Get the server wide traffic counters, queue depths and latency percentiles.
+     * The same values are exported through JMX, see JaWSMetricsMXBean.
+     * @return The metrics as they are now
+     */
+    public MetricsSnapshot getMetrics() {
+        return new MetricsSnapshot(metrics);
+    }
+
+    /**
+     * Get the metrics of every open connection, with the deepest outbound queues first.
+     * The connections at the top of the list are the slowest consumers.
+     * @return The metrics of each connection as they are now
+     */
+    public List<ConnectionMetrics> getConnectionMetrics() {
+        List<ConnectionMetrics> list = new ArrayList<ConnectionMetrics>();
+        for (Connection c : getConnections()) {
+            list.add(c.getMetrics());
         }
+        list.sort((a, b) -> Integer.compare(b.getQueuedFrames(), a.getQueuedFrames()));
+        return list;
     }
 
     /**
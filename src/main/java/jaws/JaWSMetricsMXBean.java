@@ -0,0 +1,161 @@
+package jaws;
+
+import java.util.Map;
+
+/**
+ * JaWSMetricsMXBean.java
+ *
+ * Server wide metrics, as exported through JMX under <code>jaws:type=Server,port=&lt;port&gt;</code>.
+ * The same values are available without JMX through JaWS.getMetrics().
+ * Latencies are in microseconds. Frames and bytes out are counted when they are queued for sending.
+ */
+public interface JaWSMetricsMXBean {
+
+    /**
+     * @return The number of open connections
+     */
+    int getActiveConnections();
+
+    /**
+     * @return The number of connections that completed the handshake since the server was started
+     */
+    long getAcceptedConnections();
+
+    /**
+     * @return The number of handshakes that were rejected, failed or timed out
+     */
+    long getFailedHandshakes();
+
+    /**
+     * @return The number of messages dropped or replaced by the backpressure policy, because a client was too slow
+     */
+    long getDroppedMessages();
+
+    /**
+     * @return The number of connections closed by the DISCONNECT backpressure policy
+     */
+    long getSlowConsumerDisconnects();
+
+    /**
+     * @return The number of incoming messages that were written to a temporary file, see JaWS.setSpillThreshold()
+     */
+    long getSpilledMessages();
+
+    /**
+     * @return The number of topics with at least one local subscriber
+     */
+    int getTopics();
+
+    /**
+     * @return The number of messages published to topics on this server, see JaWS.publish()
+     */
+    long getPublishedMessages();
+
+    /**
+     * @return The number of messages in the last value cache, see JaWS.setLastValueCache()
+     */
+    int getCachedValues();
+
+    /**
+     * @return The bytes of frames in the last value cache
+     */
+    long getCachedBytes();
+
+    /**
+     * @return The number of cached messages sent to connections that connected or subscribed after them
+     */
+    long getReplayedMessages();
+
+    /**
+     * @return The number of messages dropped from the last value cache to keep it within its limit
+     */
+    long getEvictedValues();
+
+    /**
+     * @return The sequence number of the newest message in the journal, see JaWS.setJournal()
+     */
+    long getJournalSequence();
+
+    /**
+     * @return The bytes of the journal's files
+     */
+    long getJournalBytes();
+
+    /**
+     * @return The number of connections and subscriptions that were sent the messages they missed from the journal
+     */
+    long getResumes();
+
+    /**
+     * @return The number of clients that asked to resume from a message the journal no longer held
+     */
+    long getFailedResumes();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return The number of writes to sockets. Frames queued together are written together, so this is usually lower than getFramesOut().
+     */
+    long getSocketWrites();
+
+    /**
+     * @return Frames recieved, by opcode name
+     */
+    Map<String, Long> getFramesInByOpcode();
+
+    /**
+     * @return Frames sent, by opcode name
+     */
+    Map<String, Long> getFramesOutByOpcode();
+
+    /**
+     * @return Frames waiting to be written, summed over all connections
+     */
+    long getQueuedFrames();
+
+    /**
+     * @return The deepest outbound queue of any connection. A high value points to a slow consumer.
+     */
+    int getMaxQueuedFramesPerConnection();
+
+    /**
+     * @return Event handler calls waiting to be made
+     */
+    long getPendingEvents();
+
+    /**
+     * @return Time from an event is posted until the handler is called
+     */
+    LatencySummary getDispatchLatency();
+
+    /**
+     * @return Time spent in event handler calls
+     */
+    LatencySummary getHandlerTime();
+
+    /**
+     * @return Time from a connection is accepted until the handshake response is sent
+     */
+    LatencySummary getHandshakeLatency();
+
+    /**
+     * @return Time from a ping is sent until the pong is recieved
+     */
+    LatencySummary getPingRoundTrip();
+
+    /**
+     * @return The statistics of the pool of direct buffers outgoing frames are packed into. The pool is shared by every server in the JVM.
+     */
+    BufferPoolMetrics getBufferPool();
+
+    /**
+     * @return The statistics of the relay to other servers, see JaWS.enableRelay()
+     */
+    RelayMetrics getRelay();
+}
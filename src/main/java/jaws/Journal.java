@@ -0,0 +1,391 @@
+package jaws;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Journal.java
+ *
+ * An append-only log of the messages sent to many clients, so a client that reconnects can be sent what it missed.
+ * <p>
+ * Every broadcast and every message published to a topic is given the next sequence number, and its packed frame is copied into
+ * the current segment: a file of a fixed size, mapped into memory. When a segment is full, a new one is started. The oldest segments
+ * are deleted once the journal takes more than its limit, or their newest message is older than the age limit.
+ * <p>
+ * Appending takes the lock of the journal for as long as it takes to copy the frame. Readers do not take it at all, except to
+ * create a cursor. A cursor slices the frames out of the mapped segments, so catching up a client copies nothing on the heap,
+ * and the frames are written from the page cache. Readers only look at records before the end of a segment, which is published
+ * after the record is written.
+ * <p>
+ * A mapping is only given back to the system when its buffer is collected, which may be long after the file is deleted, and the
+ * disk space is not freed until then. So every segment counts its users, the journal itself and the cursors reading it, and is
+ * unmapped as soon as the last of them is done with it. A cursor is done once every frame it read is written. If the connection
+ * is closed first, the writer may still be in the middle of a frame, so the segment is left for the garbage collector to unmap.
+ * So is every segment before Java 9, and of a journal that is replaced.
+ * <p>
+ * Segments are named after the sequence number of their first record, and are read back when the journal is opened again,
+ * so clients can resume across a restart of the server. A record is only counted once its length is written, so a record cut
+ * short by a crash is ignored.
+ * <p>
+ * A record is: length (int, of the rest of the record), sequence (long), time (long, milliseconds), topic length
+ * (short, -1 for a broadcast), the topic in UTF-8, and the frame.
+ */
+class Journal {
+
+    private static final int RECORD_HEADER = 4 + 8 + 8 + 2;
+    private static final String SUFFIX = ".journal";
+    private static final MethodHandle invokeCleaner = invokeCleanerHandle(); // Unsafe.invokeCleaner(ByteBuffer), or null before Java 9
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAge; // Milliseconds, 0 to keep segments regardless of age
+    private final int segmentSize;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>(); // Oldest first. Guarded by this.
+    private long bytes; // The size of all segments. Guarded by this.
+    private volatile long lastSequence; // 0 if nothing was ever appended
+
+    /**
+     * Opens the journal in a directory, reading back the segments already there.
+     * @param directory The directory, created if it does not exist
+     * @param maxBytes The most bytes of segments to keep
+     * @param maxAge The most milliseconds to keep a message, or 0 for no limit
+     */
+    Journal(Path directory, long maxBytes, long maxAge) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.segmentSize = (int)Math.max(64 * 1024, Math.min(16 * 1024 * 1024, maxBytes / 4));
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * A file of records, mapped into memory.
+     */
+    static final class Segment {
+        final Path path;
+        final long firstSequence;
+        final MappedByteBuffer map; // Written by the appender only. Readers use duplicates.
+        volatile int end; // The bytes of whole records
+        volatile long lastSequence; // firstSequence - 1 while empty
+        volatile long lastTime; // When the newest record was appended
+        private int users = 1; // The journal, until the segment is deleted, and the cursors reading it. Guarded by the journal.
+        private boolean abandoned; // A cursor was given up while its frames may still be written. Guarded by the journal.
+
+        Segment(Path path, long firstSequence, MappedByteBuffer map) {
+            this.path = path;
+            this.firstSequence = firstSequence;
+            this.map = map;
+            this.lastSequence = firstSequence - 1;
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try(DirectoryStream<Path> dir = Files.newDirectoryStream(directory, "*"+SUFFIX)) {
+            for (Path p : dir) {
+                files.add(p);
+            }
+        }
+        files.sort(null); // The names are zero padded sequence numbers
+        for (Path p : files) {
+            long first;
+            try {
+                String name = p.getFileName().toString();
+                first = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            }
+            catch(NumberFormatException e) {
+                continue;
+            }
+            if (!segments.isEmpty() && first != segments.peekLast().lastSequence + 1) {
+                // A gap, so the older segments can not be resumed from
+                Logger.logErr("Gap in journal before {}, dropping older segments", p, Logger.GENERAL);
+                while(!segments.isEmpty()) {
+                    delete(segments.pollFirst());
+                }
+            }
+            Segment s = new Segment(p, first, map(p, Files.size(p)));
+            scan(s);
+            segments.addLast(s);
+            bytes += s.map.capacity();
+            lastSequence = s.lastSequence;
+        }
+        expire(System.currentTimeMillis());
+        if (!segments.isEmpty()) {
+            Logger.log("Journal recovered up to sequence {}", lastSequence, Logger.GENERAL);
+        }
+    }
+
+    /**
+     * Finds the end of the whole records of a segment read back from disk.
+     */
+    private static void scan(Segment s) {
+        int p = 0;
+        long expected = s.firstSequence;
+        while(p + RECORD_HEADER <= s.map.capacity()) {
+            int length = s.map.getInt(p);
+            if (length < RECORD_HEADER - 4 || p + 4 + length > s.map.capacity() || s.map.getLong(p + 4) != expected) {
+                break;
+            }
+            s.lastTime = s.map.getLong(p + 12);
+            s.lastSequence = expected++;
+            p += 4 + length;
+        }
+        s.end = p;
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Appends a message.
+     * @param topic The topic it was published to, or null for a broadcast
+     * @param frame The packed frame, between position and limit. The position is not changed.
+     * @return The sequence number of the message
+     * @throws IOException If a new segment could not be created, or the topic name is too long. The message is not in the journal.
+     */
+    synchronized long append(String topic, ByteBuffer frame) throws IOException {
+        byte[] topicBytes = topic != null ? topic.getBytes(StandardCharsets.UTF_8) : null;
+        if (topicBytes != null && topicBytes.length > Short.MAX_VALUE) {
+            throw new IOException("Topic name too long to journal");
+        }
+        int length = RECORD_HEADER + (topicBytes != null ? topicBytes.length : 0) + frame.remaining();
+        long now = System.currentTimeMillis();
+
+        Segment s = segments.peekLast();
+        if (s == null || s.end + length > s.map.capacity()) {
+            s = roll(length, now);
+        }
+        long seq = lastSequence + 1;
+        ByteBuffer out = s.map.duplicate();
+        out.position(s.end + 4);
+        out.putLong(seq);
+        out.putLong(now);
+        out.putShort((short)(topicBytes != null ? topicBytes.length : -1));
+        if (topicBytes != null) {
+            out.put(topicBytes);
+        }
+        out.put(frame.duplicate());
+        s.map.putInt(s.end, length - 4); // Last, so a record cut short is not read back
+        s.lastTime = now;
+        s.lastSequence = seq;
+        s.end += length; // Publishes the record to readers
+        lastSequence = seq;
+        expire(now);
+        return seq;
+    }
+
+    /**
+     * Starts a new segment, and deletes the oldest ones if the journal is over its size.
+     * @param length The length of the record that did not fit, which may be larger than a segment
+     */
+    private Segment roll(int length, long now) throws IOException {
+        long first = lastSequence + 1;
+        Path path = directory.resolve(String.format("%020d", first)+SUFFIX);
+        int size = Math.max(segmentSize, length);
+        Segment s = new Segment(path, first, map(path, size));
+        s.lastTime = now;
+        segments.addLast(s);
+        bytes += size;
+        while(bytes > maxBytes && segments.size() > 1) {
+            delete(segments.pollFirst());
+        }
+        return s;
+    }
+
+    /**
+     * Deletes the oldest segments while their newest message is too old. The current segment is kept.
+     */
+    private void expire(long now) {
+        if (maxAge <= 0) {
+            return;
+        }
+        while(segments.size() > 1 && now - segments.peekFirst().lastTime > maxAge) {
+            delete(segments.pollFirst());
+        }
+    }
+
+    private void delete(Segment s) {
+        bytes -= s.map.capacity();
+        try {
+            Files.deleteIfExists(s.path);
+        }
+        catch(IOException e) {
+            Logger.logErr("Could not delete journal segment: {}", e.getMessage(), Logger.GENERAL);
+        }
+        release(s, true);
+    }
+
+    /**
+     * Gives up one use of a segment, and unmaps it if it was the last.
+     * @param safe false if the mapping may still be read, in which case it is left for the garbage collector
+     */
+    private synchronized void release(Segment s, boolean safe) {
+        if (!safe) {
+            s.abandoned = true;
+        }
+        if (--s.users == 0 && !s.abandoned && invokeCleaner != null) {
+            try {
+                invokeCleaner.invoke(s.map);
+            }
+            catch(Throwable e) {
+                Logger.logErr("Could not unmap journal segment: {}", e, Logger.GENERAL);
+            }
+        }
+    }
+
+    private static MethodHandle invokeCleanerHandle() {
+        try {
+            Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafe.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafe, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                .bindTo(theUnsafe.get(null));
+        }
+        catch(ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The sequence number of the newest message, or 0 if there is none
+     */
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Starts reading the messages after a sequence number, up to the newest one.
+     * Called with the messages sent from now on already going to the client, see Connection.resume().
+     * @param topic The topic to read the messages of, or null to read the broadcasts
+     * @param after The sequence number of the last message the client got
+     * @param con Told which messages to skip when they are sent to it live, as they are read from the journal instead
+     * @return A cursor, or null if the journal no longer holds, or never held, every message after the sequence number
+     */
+    synchronized Cursor cursor(String topic, long after, Connection con) {
+        // Under the lock, so every message after the end of the cursor has not been given a sequence number yet
+        long last = lastSequence;
+        Segment first = segments.peekFirst();
+        if (first == null || after < first.firstSequence - 1 || after > last) {
+            con.liveFrom(topic, 0);
+            return null;
+        }
+        con.liveFrom(topic, last + 1);
+        List<Segment> held = new ArrayList<Segment>();
+        for (Segment s : segments) {
+            if (s.lastSequence > after) {
+                s.users++;
+                held.add(s);
+            }
+        }
+        return new Cursor(this, held, topic, after, last);
+    }
+
+    /**
+     * Reads the frames of the messages of one topic, or of the broadcasts, between two sequence numbers. Used by a single thread.
+     * Keeps the segments it reads mapped until it is closed.
+     */
+    static final class Cursor {
+        private final Journal journal;
+        private final List<Segment> segments; // The segments holding the messages, oldest first
+        private final byte[] topic; // null for broadcasts
+        private final long last;
+        private int segment = 0;
+        private ByteBuffer map; // A duplicate of the current segment's map, or null before the first
+        private int position;
+        private long next;
+
+        Cursor(Journal journal, List<Segment> segments, String topic, long after, long last) {
+            this.journal = journal;
+            this.segments = segments;
+            this.topic = topic != null ? topic.getBytes(StandardCharsets.UTF_8) : null;
+            this.last = last;
+            this.next = after + 1;
+        }
+
+        /**
+         * @return The next frame, a slice of the mapped segment, or null once every message up to the end of the cursor is read
+         */
+        ByteBuffer next() {
+            while(next <= last && segment < segments.size()) {
+                Segment s = segments.get(segment);
+                if (map == null) {
+                    map = s.map.duplicate();
+                    position = 0;
+                }
+                if (position >= s.end) {
+                    segment++;
+                    map = null;
+                    continue;
+                }
+                int length = map.getInt(position);
+                long seq = map.getLong(position + 4);
+                int start = position;
+                position += 4 + length;
+                if (seq < next) {
+                    continue; // Before the first message the client missed
+                }
+                next = seq + 1;
+                int topicLength = map.getShort(start + 20);
+                int frameStart = start + RECORD_HEADER + Math.max(0, topicLength);
+                if (matches(start + RECORD_HEADER, topicLength)) {
+                    map.limit(position);
+                    map.position(frameStart);
+                    ByteBuffer frame = map.slice();
+                    map.clear();
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Gives back the segments. The frames read must not be used after this.
+         * @param written true if every frame read is written, or false if some may still be, which leaves the segments mapped
+         */
+        void close(boolean written) {
+            for (Segment s : segments) {
+                journal.release(s, written);
+            }
+            segments.clear();
+        }
+
+        private boolean matches(int at, int topicLength) {
+            if (topic == null || topicLength < 0) {
+                return topic == null && topicLength < 0;
+            }
+            if (topicLength != topic.length) {
+                return false;
+            }
+            for (int i=0; i<topicLength; i++) {
+                if (map.get(at + i) != topic[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package jaws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LastValueCache.java
+ *
+ * The latest message sent with each conflation key, so a client that connects or subscribes later gets the current state at once,
+ * without the application encoding it again for every new client.
+ * <p>
+ * Values are messages broadcast with a key, which are replayed to every new connection, and messages published to a topic with a
+ * key, which are replayed to every new subscriber of the topic. The cache keeps the SharedMessage of the send, with its packed
+ * frames, and holds a reference to it until a newer message for the key replaces it, or it is evicted. When the values take more
+ * than the limit, the ones least recently updated are evicted.
+ * <p>
+ * A new value is sent to the current clients, and a value is replayed to a new client, under the lock of the value.
+ * So a new client never gets a value after a newer one for the same key. Values are evicted under the lock of the cache,
+ * and their messages are released later, under the lock of each value, so no thread holds the locks of two values at once.
+ */
+class LastValueCache {
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<Key, Value> values = new LinkedHashMap<Key, Value>(16, 0.75f, true); // Least recently updated first. Guarded by this.
+    private final HashMap<String, LinkedHashSet<Value>> topics = new HashMap<String, LinkedHashSet<Value>>(); // The null topic holds the values of broadcasts. Guarded by this.
+    private long bytes; // Guarded by this
+
+    /**
+     * @param maxBytes The most bytes of messages to keep
+     */
+    LastValueCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * A topic and a key, for a value, and as the conflation key of messages published to a topic.
+     */
+    static final class Key {
+        final String topic; // null for broadcasts
+        final Object key;
+
+        Key(String topic, Object key) {
+            this.topic = topic;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return Objects.equals(topic, other.topic) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(topic) * 31 + key.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return topic+"/"+key;
+        }
+    }
+
+    /**
+     * The latest message for a key. The message is guarded by the lock of the value.
+     */
+    static final class Value {
+        final Key key;
+        // Not a monitor, as it is held while the message is queued, which may wait for a slow client
+        final ReentrantLock lock = new ReentrantLock();
+        SharedMessage message; // null until set, and once evicted
+        int size; // Guarded by the cache
+        volatile boolean evicted; // Set under the lock of the cache. The value is never used again once set.
+
+        Value(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * @return The key to conflate the message with, the same as it was sent with
+         */
+        Object conflationKey() {
+            return key.topic == null ? key.key : key;
+        }
+    }
+
+    /**
+     * Finds the value of a key, creating it if needed, and marks it as recently updated.
+     * @param topic The topic, or null for broadcasts
+     * @param key The key
+     */
+    synchronized Value value(String topic, Object key) {
+        Key k = new Key(topic, key);
+        Value v = values.get(k);
+        if (v == null) {
+            v = new Value(k);
+            values.put(k, v);
+            topics.computeIfAbsent(topic, t -> new LinkedHashSet<Value>()).add(v);
+        }
+        return v;
+    }
+
+    /**
+     * Makes a message the value of its key. Must be called with the lock of the value held, and the lock kept until the message
+     * is queued for the current clients.
+     * @param v The value, from value()
+     * @param message The new message
+     * @return The values evicted to make room, to be given to release() once the lock of the value is let go
+     */
+    List<Value> set(Value v, SharedMessage message) {
+        if (v.evicted) {
+            return Collections.emptyList();
+        }
+        message.retain();
+        SharedMessage old = v.message;
+        v.message = message;
+        if (old != null) {
+            old.release();
+        }
+
+        synchronized(this) {
+            if (v.evicted) {
+                return Collections.emptyList(); // Its message is released by the thread that evicted it
+            }
+            int size = message.size();
+            bytes += size - v.size;
+            v.size = size;
+            return evict(v);
+        }
+    }
+
+    /**
+     * Evicts the least recently updated values until the rest fit. Called with the lock of the cache held.
+     * @param keep A value that is not evicted, even if it does not fit by itself
+     */
+    private List<Value> evict(Value keep) {
+        List<Value> evicted = Collections.emptyList();
+        Iterator<Value> it = values.values().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            Value v = it.next();
+            if (v == keep) {
+                continue;
+            }
+            it.remove();
+            remove(v);
+            if (evicted.isEmpty()) {
+                evicted = new ArrayList<Value>();
+            }
+            evicted.add(v);
+        }
+        return evicted;
+    }
+
+    private void remove(Value v) {
+        LinkedHashSet<Value> topic = topics.get(v.key.topic);
+        topic.remove(v);
+        if (topic.isEmpty()) {
+            topics.remove(v.key.topic);
+        }
+        bytes -= v.size;
+        v.evicted = true;
+    }
+
+    /**
+     * Gives up the messages of evicted values.
+     * @param evicted Values returned by set() or clear()
+     */
+    void release(List<Value> evicted) {
+        for (Value v : evicted) {
+            v.lock.lock();
+            try {
+                if (v.message != null) {
+                    v.message.release();
+                    v.message = null;
+                }
+            }
+            finally {
+                v.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sends the current values of a topic to a connection that just subscribed to it, or the values of broadcasts to a new connection.
+     * @param con The connection
+     * @param topic The topic, or null for broadcasts
+     * @return The number of values sent
+     */
+    int replay(Connection con, String topic) {
+        Value[] current;
+        synchronized(this) {
+            LinkedHashSet<Value> set = topics.get(topic);
+            if (set == null) {
+                return 0;
+            }
+            current = set.toArray(new Value[set.size()]);
+        }
+        int n = 0;
+        for (Value v : current) {
+            v.lock.lock();
+            try {
+                if (v.message != null) {
+                    con.sendShared(v.message, v.conflationKey());
+                    n++;
+                }
+            }
+            finally {
+                v.lock.unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Evicts every value.
+     */
+    void clear() {
+        List<Value> evicted;
+        synchronized(this) {
+            evicted = new ArrayList<Value>(values.values());
+            for (Value v : evicted) {
+                remove(v);
+            }
+            values.clear();
+        }
+        release(evicted);
+    }
+
+    synchronized int size() {
+        return values.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+}
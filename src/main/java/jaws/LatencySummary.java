@@ -0,0 +1,52 @@
+package jaws;
+
+/**
+ * LatencySummary.java
+ *
+ * Percentiles of a latency distribution at the time it was read. All values are in microseconds,
+ * and are upper bounds, at most 1.6% above the true value.
+ */
+public final class LatencySummary {
+
+    private final long count;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    LatencySummary(long count, long p50, long p99, long p999, long max) {
+        this.count = count;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    /**
+     * @return The number of recorded values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count="+count+" p50="+p50+"us p99="+p99+"us p999="+p999+"us max="+max+"us";
+    }
+}
@@ -1,5 +1,25 @@
 package jaws;
 
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Logger.java
+ *
+ * Logging by category. A call for a category that is not in <code>logLevel</code> returns at once, without building any string,
+ * as long as the message is given as a pattern with arguments, or as a Supplier, and not concatenated by the caller.
+ * <p>
+ * Entries for enabled categories are put in a preallocated ring buffer, and printed by a background thread.
+ * The thread that logs never waits for stdout. If the ring is full, the entry is dropped and counted, see getDropped().
+ * The printer sleeps while the ring is empty, and is woken by the next entry.
+ * Patterns, arguments and Suppliers are turned into strings on the logging thread, so arguments should not be changed after the call.
+ * <p>
+ * Patterns use <code>{}</code> for each argument, as in <code>Logger.log("Sent {} bytes", n, Logger.WS_IO)</code>.
+ */
 public class Logger {
 
     public static final int NONE = 0x00; // Disable printing. Use as loglevel, not as category.
@@ -11,15 +31,270 @@ public class Logger {
 
     public static int logLevel = GENERAL;
 
+    private static final int RING_SIZE = 8192; // Must be a power of two
+    private static final int BATCH_SIZE = 256; // Entries printed with a single write
+
+    /**
+     * One slot in the ring. Slots are reused, so nothing is allocated per entry but the caller's own arguments.
+     */
+    private static final class Entry {
+        volatile long published = -1; // The sequence number of the entry in the slot, once it can be read
+        boolean err;
+        String pattern;
+        Supplier<String> supplier;
+        Object arg1;
+        Object arg2;
+        long num1;
+        long num2;
+        int args; // How many {} in the pattern to fill in
+        int numbers; // How many of the arguments are in num1 and num2, and not in arg1 and arg2
+    }
+
+    private static final Entry[] ring = new Entry[RING_SIZE];
+    private static final AtomicLong claimed = new AtomicLong(0); // Next sequence number to hand to a logging thread
+    private static volatile long printed = 0; // Sequence numbers below this are printed, and their slots free
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Thread printer;
+    private static volatile boolean sleeping = false; // The printer is parked, or about to be, and must be woken by the next entry
+    private static final Object flushed = new Object(); // Notified when entries are printed, while flushers wait
+    private static final AtomicInteger flushers = new AtomicInteger();
+
+    static {
+        for (int i=0; i<RING_SIZE; i++) {
+            ring[i] = new Entry();
+        }
+    }
+
+    /**
+     * @param category The category to check
+     * @return true if messages in the category are printed. Use it to skip work done only for logging.
+     */
+    public static boolean isEnabled(int category) {
+        return (logLevel & category) != 0;
+    }
+
     public static void log(String message, int category) {
         if ((logLevel & category) != 0) {
-            System.out.println(message);
+            Entry e = claim();
+            if (e != null) publish(e, false, message, null, null, null, 0, 0, 0, 0);
         }
     }
 
     public static void logErr(String message, int category) {
         if ((logLevel & category) != 0) {
-            System.err.println(message);
+            Entry e = claim();
+            if (e != null) publish(e, true, message, null, null, null, 0, 0, 0, 0);
+        }
+    }
+
+    /**
+     * @param message Creates the message. Only called if the category is enabled, and then on the logging thread.
+     * @param category The category of the message
+     */
+    public static void log(Supplier<String> message, int category) {
+        if ((logLevel & category) != 0) {
+            Entry e = claim();
+            if (e != null) publish(e, false, null, message, null, null, 0, 0, 0, 0);
+        }
+    }
+
+    public static void log(String pattern, Object arg, int category) {
+        if ((logLevel & category) != 0) {
+            Entry e = claim();
+            if (e != null) publish(e, false, pattern, null, arg, null, 0, 0, 1, 0);
+        }
+    }
+
+    public static void log(String pattern, Object arg1, Object arg2, int category) {
+        if ((logLevel & category) != 0) {
+            Entry e = claim();
+            if (e != null) publish(e, false, pattern, null, arg1, arg2, 0, 0, 2, 0);
+        }
+    }
+
+    /**
+     * Same as log(String, Object, int), but a number is not boxed.
+     */
+    public static void log(String pattern, long arg, int category) {
+        if ((logLevel & category) != 0) {
+            Entry e = claim();
+            if (e != null) publish(e, false, pattern, null, null, null, arg, 0, 1, 1);
+        }
+    }
+
+    /**
+     * Same as log(String, Object, Object, int), but numbers are not boxed.
+     */
+    public static void log(String pattern, long arg1, long arg2, int category) {
+        if ((logLevel & category) != 0) {
+            Entry e = claim();
+            if (e != null) publish(e, false, pattern, null, null, null, arg1, arg2, 2, 2);
+        }
+    }
+
+    public static void logErr(String pattern, Object arg, int category) {
+        if ((logLevel & category) != 0) {
+            Entry e = claim();
+            if (e != null) publish(e, true, pattern, null, arg, null, 0, 0, 1, 0);
+        }
+    }
+
+    /**
+     * @return The number of entries dropped because the ring was full
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits until every entry logged before the call is printed, or until the timeout.
+     * @param timeoutMillis The longest time to wait
+     */
+    public static void flush(long timeoutMillis) {
+        long target = claimed.get();
+        if (printed >= target) {
+            return;
+        }
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        flushers.incrementAndGet();
+        try {
+            synchronized(flushed) {
+                long wait;
+                while(printed < target && (wait = deadline - System.nanoTime()) > 0) {
+                    flushed.wait(wait / 1000000L, (int)(wait % 1000000L));
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            flushers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Claims the next free slot, or drops the entry if there is none.
+     */
+    private static Entry claim() {
+        while(true) {
+            long seq = claimed.get();
+            if (seq - printed >= RING_SIZE) {
+                dropped.increment();
+                return null;
+            }
+            if (claimed.compareAndSet(seq, seq + 1)) {
+                Entry e = ring[(int)seq & (RING_SIZE - 1)];
+                e.published = -seq - 2; // Claimed, but not written yet. Never equal to a sequence number.
+                return e;
+            }
+        }
+    }
+
+    private static void publish(Entry e, boolean err, String pattern, Supplier<String> supplier,
+            Object arg1, Object arg2, long num1, long num2, int args, int numbers) {
+        long seq = -e.published - 2;
+        e.err = err;
+        e.pattern = pattern;
+        e.supplier = supplier;
+        e.arg1 = arg1;
+        e.arg2 = arg2;
+        e.num1 = num1;
+        e.num2 = num2;
+        e.args = args;
+        e.numbers = numbers;
+        e.published = seq; // Volatile write. The fields above are visible to the printer once it sees this.
+
+        if (printer == null) {
+            startPrinter();
+        }
+        else if (sleeping) {
+            LockSupport.unpark(printer);
+        }
+    }
+
+    private static synchronized void startPrinter() {
+        if (printer != null) return;
+        Thread t = new Thread(Logger::print, "JaWS-logger");
+        t.setDaemon(true);
+        t.start();
+        // Print what is left when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+        printer = t;
+    }
+
+    private static void print() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        while(true) {
+            long next = printed;
+            int n = 0;
+            Entry e;
+            while(n < BATCH_SIZE && (e = ring[(int)next & (RING_SIZE - 1)]).published == next) {
+                try {
+                    format(e, e.err ? err : out);
+                }
+                catch(RuntimeException ex) {
+                    // A broken Supplier or toString() must not stop the logging
+                    (e.err ? err : out).append("Could not format log entry: ").append(ex).append('\n');
+                }
+                e.pattern = null;
+                e.supplier = null;
+                e.arg1 = null;
+                e.arg2 = null;
+                next++;
+                n++;
+            }
+
+            if (n == 0) {
+                sleeping = true;
+                // An entry published before the flag was set did not wake us, so look again before parking
+                if (ring[(int)next & (RING_SIZE - 1)].published != next) {
+                    LockSupport.park();
+                }
+                sleeping = false;
+                continue;
+            }
+            write(System.out, out);
+            write(System.err, err);
+            printed = next;
+            if (flushers.get() > 0) {
+                synchronized(flushed) {
+                    flushed.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void write(PrintStream stream, StringBuilder sb) {
+        if (sb.length() > 0) {
+            stream.print(sb);
+            stream.flush();
+            sb.setLength(0);
+        }
+    }
+
+    private static void format(Entry e, StringBuilder sb) {
+        if (e.supplier != null) {
+            sb.append(e.supplier.get()).append('\n');
+            return;
+        }
+
+        String pattern = e.pattern;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while(arg < e.args && (at = pattern.indexOf("{}", from)) >= 0) {
+            sb.append(pattern, from, at);
+            if (arg < e.numbers) {
+                sb.append(arg == 0 ? e.num1 : e.num2);
+            }
+            else {
+                sb.append(arg == 0 ? e.arg1 : e.arg2);
+            }
+            arg++;
+            from = at + 2;
         }
+        sb.append(pattern, from, pattern.length()).append('\n');
     }
 }
@@ -0,0 +1,49 @@
+package jaws;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * LoopAssignment.java
+ *
+ * Chooses the selector loop a new connection is handed to, for JaWS.Engine.NIO. Set with JaWS.setLoopAssignment().
+ * A connection stays on its loop until it is closed. Implementations are called by every acceptor thread, and must be thread safe.
+ */
+@FunctionalInterface
+public interface LoopAssignment {
+
+    /**
+     * @param loops The number of loops
+     * @param connections Gives the number of channels owned by a loop, including ones still doing the handshake
+     * @return The index of the loop to use, from 0 to loops - 1
+     */
+    int select(int loops, IntUnaryOperator connections);
+
+    /**
+     * Hands connections to the loops in turn. This is the default. Cheap, and even as long as connections live about as long.
+     * @return A new round robin assignment
+     */
+    static LoopAssignment roundRobin() {
+        AtomicInteger next = new AtomicInteger(0);
+        return (loops, connections) -> Math.floorMod(next.getAndIncrement(), loops);
+    }
+
+    /**
+     * Hands every connection to the loop with the fewest, so loops even out when some clients stay much longer than others.
+     * @return A new least connections assignment
+     */
+    static LoopAssignment leastConnections() {
+        return (loops, connections) -> {
+            int best = 0;
+            int fewest = connections.applyAsInt(0);
+            for (int i=1; i<loops && fewest > 0; i++) {
+                int n = connections.applyAsInt(i);
+                if (n < fewest) {
+                    best = i;
+                    fewest = n;
+                }
+            }
+            return best;
+        };
+    }
+}
@@ -0,0 +1,107 @@
+package jaws;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mailbox.java
+ *
+ * The events waiting to be given to the event handler for a single connection.
+ * Events are run one at a time, in the order they were posted, by tasks on the server's event executor.
+ * Mailboxes of different connections run in parallel, so a slow handler call only holds up the connection it was made for.
+ */
+class Mailbox {
+
+    // Events run before the mailbox gives its thread back to the executor, so one busy connection can not hog a thread
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * A handler call, and when it was posted.
+     */
+    private static final class Event {
+        final Runnable call;
+        final long posted;
+
+        Event(Runnable call, long posted) {
+            this.call = call;
+            this.posted = posted;
+        }
+    }
+
+    private final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final Executor executor;
+    private final AtomicLong totalPending; // Shared by all mailboxes of a server
+    private final Metrics metrics;
+
+    Mailbox(Executor executor, AtomicLong totalPending, Metrics metrics) {
+        this.executor = executor;
+        this.totalPending = totalPending;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds an event to the mailbox. Never blocks.
+     * @param event The handler call to make
+     */
+    void post(Runnable event) {
+        events.add(new Event(event, System.nanoTime()));
+        size.incrementAndGet();
+        totalPending.incrementAndGet();
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::run);
+            }
+            catch(RejectedExecutionException e) {
+                // The server is shutting down. Drop what is left.
+                while(events.poll() != null) {
+                    size.decrementAndGet();
+                    totalPending.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void run() {
+        for (int i=0; i<BATCH_SIZE; i++) {
+            Event event = events.poll();
+            if (event == null) break;
+
+            size.decrementAndGet();
+            totalPending.decrementAndGet();
+            long start = System.nanoTime();
+            metrics.dispatchLatency.record((start - event.posted) / 1000);
+            try {
+                event.call.run();
+            }
+            catch(RuntimeException e) {
+                // A misbehaving event handler must not stop the events of this connection
+                e.printStackTrace();
+            }
+            metrics.handlerTime.record((System.nanoTime() - start) / 1000);
+        }
+
+        scheduled.set(false);
+        if (!events.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return The number of events waiting to be run
+     */
+    int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,246 @@
+package jaws;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics.java
+ *
+ * The live server wide counters and latency histograms of a JaWS-object.
+ * Counters are LongAdders, so the reader threads, writers and event threads of many connections can count at the same time
+ * without fighting over a single cache line. Reading sums them up, which is cheap enough for monitoring, but not for every frame.
+ * <p>
+ * An object of this class is the MXBean registered for the server.
+ */
+class Metrics implements JaWSMetricsMXBean {
+
+    private static final Frame.OpCode[] OPCODES = Frame.OpCode.values();
+
+    private final JaWS jaws;
+
+    final LongAdder acceptedConnections = new LongAdder();
+    final LongAdder failedHandshakes = new LongAdder();
+    final LongAdder droppedMessages = new LongAdder();
+    final LongAdder slowConsumerDisconnects = new LongAdder();
+    final LongAdder spilledMessages = new LongAdder();
+    final LongAdder publishedMessages = new LongAdder();
+    final LongAdder replayedMessages = new LongAdder();
+    final LongAdder evictedValues = new LongAdder();
+    final LongAdder resumes = new LongAdder();
+    final LongAdder failedResumes = new LongAdder();
+    final LongAdder framesIn = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder socketWrites = new LongAdder();
+    private final LongAdder[] opcodesIn = new LongAdder[OPCODES.length];
+    private final LongAdder[] opcodesOut = new LongAdder[OPCODES.length];
+
+    final Histogram dispatchLatency = new Histogram();
+    final Histogram handlerTime = new Histogram();
+    final Histogram handshakeLatency = new Histogram();
+    final Histogram pingRoundTrip = new Histogram();
+
+    Metrics(JaWS jaws) {
+        this.jaws = jaws;
+        for (int i=0; i<OPCODES.length; i++) {
+            opcodesIn[i] = new LongAdder();
+            opcodesOut[i] = new LongAdder();
+        }
+    }
+
+    void frameIn(Frame.OpCode opcode) {
+        framesIn.increment();
+        opcodesIn[opcode.ordinal()].increment();
+    }
+
+    /**
+     * @param frame A packed frame, about to be queued. Its position is not changed.
+     */
+    void frameOut(ByteBuffer frame) {
+        framesOut.increment();
+        bytesOut.add(frame.remaining());
+        opcodesOut[Frame.OpCode.getOpcode(frame.get(frame.position()) & 0x0F).ordinal()].increment();
+    }
+
+    private static Map<String, Long> byOpcode(LongAdder[] counters) {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (int i=0; i<OPCODES.length; i++) {
+            long n = counters[i].sum();
+            if (n > 0) {
+                map.put(OPCODES[i].name(), n);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return jaws.getNumberOfConnections();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    @Override
+    public long getSpilledMessages() {
+        return spilledMessages.sum();
+    }
+
+    @Override
+    public int getTopics() {
+        return jaws.getTopicCount();
+    }
+
+    @Override
+    public long getPublishedMessages() {
+        return publishedMessages.sum();
+    }
+
+    @Override
+    public int getCachedValues() {
+        return jaws.getCachedValues();
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return jaws.getCachedBytes();
+    }
+
+    @Override
+    public long getReplayedMessages() {
+        return replayedMessages.sum();
+    }
+
+    @Override
+    public long getEvictedValues() {
+        return evictedValues.sum();
+    }
+
+    @Override
+    public long getJournalSequence() {
+        return jaws.getJournalSequence();
+    }
+
+    @Override
+    public long getJournalBytes() {
+        return jaws.getJournalBytes();
+    }
+
+    @Override
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    @Override
+    public long getFailedResumes() {
+        return failedResumes.sum();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFramesInByOpcode() {
+        return byOpcode(opcodesIn);
+    }
+
+    @Override
+    public Map<String, Long> getFramesOutByOpcode() {
+        return byOpcode(opcodesOut);
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        long n = 0;
+        for (Connection c : jaws.getConnections()) {
+            n += c.getQueuedFrames();
+        }
+        return n;
+    }
+
+    @Override
+    public int getMaxQueuedFramesPerConnection() {
+        int max = 0;
+        for (Connection c : jaws.getConnections()) {
+            max = Math.max(max, c.getQueuedFrames());
+        }
+        return max;
+    }
+
+    @Override
+    public long getPendingEvents() {
+        return jaws.getPendingEvents();
+    }
+
+    @Override
+    public LatencySummary getDispatchLatency() {
+        return dispatchLatency.summary();
+    }
+
+    @Override
+    public LatencySummary getHandlerTime() {
+        return handlerTime.summary();
+    }
+
+    @Override
+    public LatencySummary getHandshakeLatency() {
+        return handshakeLatency.summary();
+    }
+
+    @Override
+    public LatencySummary getPingRoundTrip() {
+        return pingRoundTrip.summary();
+    }
+
+    @Override
+    public BufferPoolMetrics getBufferPool() {
+        return BufferPool.metrics();
+    }
+
+    @Override
+    public RelayMetrics getRelay() {
+        return jaws.relayMetrics();
+    }
+}
@@ -0,0 +1,259 @@
+package jaws;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * MetricsSnapshot.java
+ *
+ * The server wide metrics at one point in time, as returned by JaWS.getMetrics().
+ * The values are read one by one while the server runs, so they may be slightly out of step with each other.
+ */
+public final class MetricsSnapshot implements JaWSMetricsMXBean {
+
+    private final int activeConnections;
+    private final long acceptedConnections;
+    private final long failedHandshakes;
+    private final long droppedMessages;
+    private final long slowConsumerDisconnects;
+    private final long spilledMessages;
+    private final int topics;
+    private final long publishedMessages;
+    private final int cachedValues;
+    private final long cachedBytes;
+    private final long replayedMessages;
+    private final long evictedValues;
+    private final long journalSequence;
+    private final long journalBytes;
+    private final long resumes;
+    private final long failedResumes;
+    private final long framesIn;
+    private final long framesOut;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long socketWrites;
+    private final Map<String, Long> framesInByOpcode;
+    private final Map<String, Long> framesOutByOpcode;
+    private final long queuedFrames;
+    private final int maxQueuedFramesPerConnection;
+    private final long pendingEvents;
+    private final LatencySummary dispatchLatency;
+    private final LatencySummary handlerTime;
+    private final LatencySummary handshakeLatency;
+    private final LatencySummary pingRoundTrip;
+    private final BufferPoolMetrics bufferPool;
+    private final RelayMetrics relay;
+
+    MetricsSnapshot(JaWSMetricsMXBean live) {
+        this.activeConnections = live.getActiveConnections();
+        this.acceptedConnections = live.getAcceptedConnections();
+        this.failedHandshakes = live.getFailedHandshakes();
+        this.droppedMessages = live.getDroppedMessages();
+        this.slowConsumerDisconnects = live.getSlowConsumerDisconnects();
+        this.spilledMessages = live.getSpilledMessages();
+        this.topics = live.getTopics();
+        this.publishedMessages = live.getPublishedMessages();
+        this.cachedValues = live.getCachedValues();
+        this.cachedBytes = live.getCachedBytes();
+        this.replayedMessages = live.getReplayedMessages();
+        this.evictedValues = live.getEvictedValues();
+        this.journalSequence = live.getJournalSequence();
+        this.journalBytes = live.getJournalBytes();
+        this.resumes = live.getResumes();
+        this.failedResumes = live.getFailedResumes();
+        this.framesIn = live.getFramesIn();
+        this.framesOut = live.getFramesOut();
+        this.bytesIn = live.getBytesIn();
+        this.bytesOut = live.getBytesOut();
+        this.socketWrites = live.getSocketWrites();
+        this.framesInByOpcode = Collections.unmodifiableMap(live.getFramesInByOpcode());
+        this.framesOutByOpcode = Collections.unmodifiableMap(live.getFramesOutByOpcode());
+        this.queuedFrames = live.getQueuedFrames();
+        this.maxQueuedFramesPerConnection = live.getMaxQueuedFramesPerConnection();
+        this.pendingEvents = live.getPendingEvents();
+        this.dispatchLatency = live.getDispatchLatency();
+        this.handlerTime = live.getHandlerTime();
+        this.handshakeLatency = live.getHandshakeLatency();
+        this.pingRoundTrip = live.getPingRoundTrip();
+        this.bufferPool = live.getBufferPool();
+        this.relay = live.getRelay();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections;
+    }
+
+    @Override
+    public long getFailedHandshakes() {
+        return failedHandshakes;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects;
+    }
+
+    @Override
+    public long getSpilledMessages() {
+        return spilledMessages;
+    }
+
+    @Override
+    public int getTopics() {
+        return topics;
+    }
+
+    @Override
+    public long getPublishedMessages() {
+        return publishedMessages;
+    }
+
+    @Override
+    public int getCachedValues() {
+        return cachedValues;
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    @Override
+    public long getReplayedMessages() {
+        return replayedMessages;
+    }
+
+    @Override
+    public long getEvictedValues() {
+        return evictedValues;
+    }
+
+    @Override
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    @Override
+    public long getJournalBytes() {
+        return journalBytes;
+    }
+
+    @Override
+    public long getResumes() {
+        return resumes;
+    }
+
+    @Override
+    public long getFailedResumes() {
+        return failedResumes;
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn;
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites;
+    }
+
+    @Override
+    public Map<String, Long> getFramesInByOpcode() {
+        return framesInByOpcode;
+    }
+
+    @Override
+    public Map<String, Long> getFramesOutByOpcode() {
+        return framesOutByOpcode;
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    @Override
+    public int getMaxQueuedFramesPerConnection() {
+        return maxQueuedFramesPerConnection;
+    }
+
+    @Override
+    public long getPendingEvents() {
+        return pendingEvents;
+    }
+
+    @Override
+    public LatencySummary getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    @Override
+    public LatencySummary getHandlerTime() {
+        return handlerTime;
+    }
+
+    @Override
+    public LatencySummary getHandshakeLatency() {
+        return handshakeLatency;
+    }
+
+    @Override
+    public LatencySummary getPingRoundTrip() {
+        return pingRoundTrip;
+    }
+
+    @Override
+    public BufferPoolMetrics getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public RelayMetrics getRelay() {
+        return relay;
+    }
+
+    @Override
+    public String toString() {
+        return "connections="+activeConnections+" accepted="+acceptedConnections+" failedHandshakes="+failedHandshakes+"\n"+
+            "frames in="+framesIn+" "+framesInByOpcode+" out="+framesOut+" "+framesOutByOpcode+"\n"+
+            "bytes in="+bytesIn+" out="+bytesOut+" socket writes="+socketWrites+"\n"+
+            "queued frames="+queuedFrames+" (max "+maxQueuedFramesPerConnection+" on one connection) pending events="+pendingEvents+"\n"+
+            "dropped messages="+droppedMessages+" slow consumer disconnects="+slowConsumerDisconnects+" spilled messages="+spilledMessages+"\n"+
+            "topics="+topics+" published messages="+publishedMessages+"\n"+
+            "cached values="+cachedValues+" ("+cachedBytes+" bytes) replayed="+replayedMessages+" evicted="+evictedValues+"\n"+
+            "journal sequence="+journalSequence+" ("+journalBytes+" bytes) resumes="+resumes+" failed="+failedResumes+"\n"+
+            "dispatch latency: "+dispatchLatency+"\n"+
+            "handler time: "+handlerTime+"\n"+
+            "handshake latency: "+handshakeLatency+"\n"+
+            "ping round trip: "+pingRoundTrip+"\n"+
+            "buffer pool: "+bufferPool+"\n"+
+            "relay: "+relay;
+    }
+}
@@ -0,0 +1,300 @@
+package jaws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NioConnection.java
+ *
+ * The connection used by JaWS.Engine.NIO.
+ * All reading and writing is done by the EventLoop owning the channel. The connection object is created when the channel is accepted,
+ * and is handed to the event handler once the upgrade handshake is complete.
+ * The frames queued for a connection are written in batches, each with a single gathering write.
+ *
+ */
+class NioConnection extends Connection {
+
+    final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private static final int LINGER_MAX_BYTES = 64 * 1024; // Stop waiting for more frames once this many are queued
+    private static final long CLOSE_TIMEOUT_MS = 1000; // The longest wait for the queue to be written before closing the channel
+
+    private volatile boolean closeAfterFlush = false;
+    private final AtomicBoolean lingering = new AtomicBoolean(false); // Set by the loop while it waits out the write linger
+    long flushAt; // System.nanoTime() at which a lingering connection is flushed. Only used by the loop
+    private boolean channelClosed = false; // Only used by the loop
+
+    private Handshake handshake = new Handshake(); // The upgrade request as it arrives. null once it is handled
+    private boolean upgraded = false;
+    private final long acceptedAt; // System.nanoTime() when the channel was accepted
+    final long handshakeDeadline; // System.nanoTime() by which the upgrade request must be recieved
+
+    NioConnection(JaWS jaws, EventLoop loop, SocketChannel channel, SelectionKey key) {
+        super(jaws);
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.acceptedAt = System.nanoTime();
+        this.handshakeDeadline = acceptedAt + jaws.getHandshakeTimeout() * 1000000L;
+    }
+
+    /**
+     * Called by the loop when the channel has bytes for us.
+     * @param buffer The loop's read buffer
+     */
+    void onReadable(ByteBuffer buffer) {
+        buffer.clear();
+        try {
+            int n = channel.read(buffer);
+            if (n < 0) {
+                lost();
+                return;
+            }
+            buffer.flip();
+
+            if (!upgraded) {
+                readHandshake(buffer);
+                if (!upgraded) return;
+            }
+            countIn(buffer.remaining());
+
+            Frame f;
+            while(!isClosed() && (f = parser.parse(buffer)) != null) {
+                onFrame(f);
+            }
+        }
+        catch(CloseException e) {
+            // The client broke the protocol or a limit
+            this.close(e.code, e.getMessage());
+        }
+        catch(IOException e) {
+            if (channel.isOpen()) {
+                e.printStackTrace();
+                this.close("Internal server error");
+            }
+        }
+    }
+
+    private void readHandshake(ByteBuffer buffer) {
+        if (handshake == null) {
+            // Rejected, and waiting for the response to be written
+            buffer.position(buffer.limit());
+            return;
+        }
+        try {
+            if (handshake.feed(buffer)) {
+                upgrade();
+            }
+        }
+        catch(IOException e) {
+            Logger.log("Handshake failed: {}", e.getMessage(), Logger.GENERAL);
+            jaws.metrics.failedHandshakes.increment();
+            handshake = null;
+            closeChannel();
+        }
+    }
+
+    private void upgrade() {
+        JaWS.Upgrade upgrade = jaws.upgrade(handshake);
+        handshake = null;
+        if (upgrade == null) {
+            jaws.metrics.failedHandshakes.increment();
+            writeResponse(JaWS.BAD_REQUEST);
+            closeAfterFlush();
+            return;
+        }
+
+        writeResponse(upgrade.response);
+        deflate = upgrade.deflate;
+        jaws.metrics.handshakeLatency.record((System.nanoTime() - acceptedAt) / 1000);
+
+        upgraded = true;
+        Logger.log("Handshake sent, creating connection", Logger.GENERAL);
+        jaws.addConnection(this, upgrade.resumeAfter);
+        jaws.onConnect(this);
+    }
+
+    /**
+     * Queues an HTTP response. It goes through the outbound queue like the frames after it, but is not counted as a frame.
+     */
+    private void writeResponse(String response) {
+        outbound.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)), new CompletableFuture<Void>());
+        scheduleFlush();
+    }
+
+    /**
+     * @return true while the connection waits for the upgrade request
+     */
+    boolean isHandshaking() {
+        return handshake != null && channel.isOpen();
+    }
+
+    /**
+     * Called by the loop when the client has not completed the upgrade request in time.
+     */
+    void handshakeTimedOut() {
+        Logger.log("Handshake timed out", Logger.GENERAL);
+        jaws.metrics.failedHandshakes.increment();
+        handshake = null;
+        closeChannel();
+    }
+
+    /**
+     * Called by the loop when the channel can take more bytes.
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * The loop is the single writer for all its connections.
+     */
+    @Override
+    void scheduleFlush() {
+        if (outbound.tryScheduleDrain()) {
+            loop.execute(jaws.getWriteLinger() > 0 ? this::lingerOrFlush : this::flush);
+        }
+        else if (lingering.get() && outbound.bytes() >= LINGER_MAX_BYTES && lingering.compareAndSet(true, false)) {
+            // Enough is queued to make waiting for more pointless
+            loop.execute(this::flush);
+        }
+    }
+
+    private void lingerOrFlush() {
+        if (!linger()) {
+            flush();
+        }
+    }
+
+    /**
+     * Waits out the write linger before flushing, so frames queued meanwhile are written together. Only called on the loop thread.
+     * @return true if the connection is now waiting, false if enough is queued to flush at once
+     */
+    private boolean linger() {
+        if (outbound.bytes() >= LINGER_MAX_BYTES) {
+            return false;
+        }
+        flushAt = System.nanoTime() + jaws.getWriteLinger() * 1000L;
+        lingering.set(true);
+        loop.linger(this);
+        return true;
+    }
+
+    /**
+     * Called by the loop when the write linger of this connection is over.
+     */
+    void lingerExpired() {
+        if (lingering.compareAndSet(true, false)) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue as the channel will take without blocking. Only called on the loop thread.
+     */
+    private void flush() {
+        do {
+            if (!channel.isOpen()) {
+                outbound.failAll();
+                continue;
+            }
+
+            OutboundQueue.Entry[] batch = loop.batch;
+            ByteBuffer[] gather = loop.gather;
+            int n = 0;
+            try {
+                while((n = outbound.gather(batch, gather, EventLoop.MAX_GATHER_BYTES)) > 0) {
+                    channel.write(gather, 0, n);
+                    jaws.metrics.socketWrites.increment();
+                    boolean all = outbound.written(batch, gather, n);
+                    n = 0;
+                    if (!all) {
+                        // The socket buffer is full. Continue when the loop tells us it is writable again.
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        break;
+                    }
+                }
+                if (outbound.isEmpty()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+                    if (closeAfterFlush) {
+                        closeChannel();
+                    }
+                }
+            }
+            catch(IOException e) {
+                outbound.written(batch, gather, n);
+                outbound.failAll();
+                lost();
+            }
+        } while(outbound.drainDone() && !isWaitingForWritable() && !(jaws.getWriteLinger() > 0 && linger()));
+    }
+
+    private boolean isWaitingForWritable() {
+        return key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+    }
+
+    /**
+     * The client went away without a closing handshake.
+     */
+    private void lost() {
+        closeChannel();
+        if (upgraded) {
+            this.close(null);
+        }
+    }
+
+    private void closeChannel() {
+        if (!channelClosed) {
+            channelClosed = true;
+            loop.channelClosed();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        }
+        catch(IOException e) {
+            Logger.logErr("Exception thrown while closing connection!", Logger.WS_IO);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The close frame is queued behind any frames already sent, and the channel is closed once the queue is written.
+     */
+    @Override
+    void shutdown(byte[] closeFrame) {
+        if (closeFrame != null) {
+            outbound.add(ByteBuffer.wrap(closeFrame), new CompletableFuture<Void>());
+        }
+        closeAfterFlush();
+    }
+
+    /**
+     * Closes the channel once the queue is written, or after CLOSE_TIMEOUT_MS, if the client does not take it.
+     */
+    private void closeAfterFlush() {
+        closeAfterFlush = true;
+        jaws.timer.schedule(() -> loop.execute(this::closeTimedOut), CLOSE_TIMEOUT_MS);
+        scheduleFlush();
+    }
+
+    /**
+     * Called on the loop when the queue was not written in time after a close. The client has stopped reading, and its socket
+     * buffer is full, so the rest of the queue is dropped.
+     */
+    private void closeTimedOut() {
+        if (channel.isOpen()) {
+            Logger.log("Client did not take the close frame in time, {} bytes queued", outbound.bytes(), Logger.GENERAL);
+            outbound.failAll();
+            closeChannel();
+        }
+    }
+}
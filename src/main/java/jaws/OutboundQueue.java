@@ -0,0 +1,307 @@
+package jaws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * OutboundQueue.java
+ *
+ * The frames waiting to be written to a single client, in the order they were sent.
+ * Any thread may add frames, but only one writer at a time drains the queue. The writer is elected through tryScheduleDrain(),
+ * so a send never costs more than an enqueue, and frames from concurrent senders are never interleaved.
+ * <p>
+ * The queue counts the bytes it holds, and tells a listener when they rise to the high watermark, and when they fall back to the low one.
+ * Whole messages that the writer has not started on may be dropped again, to make room or to be replaced by a newer message with the same key.
+ * The writer and a dropping thread agree on who gets an entry through its state, so a frame is never dropped half written.
+ * <p>
+ * A frame in a buffer from the BufferPool is released when it is written, dropped or failed.
+ * <p>
+ * The writer takes frames from the front of the queue in batches, with gather(), so they can be written with a single gathering write.
+ * Frames of a batch that the socket did not take any of are given back by written(), and may still be dropped.
+ */
+class OutboundQueue {
+
+    private static final int QUEUED = 0;
+    private static final int STARTED = 1; // The writer has begun writing it
+    private static final int DROPPED = 2;
+    private static final int WRITTEN = 3;
+
+    private static final AtomicIntegerFieldUpdater<Entry> STATE = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+    static final class Entry {
+        final ByteBuffer buffer;
+        final PooledBuffer pooled; // The buffer to release when done with the frame, or null
+        final CompletableFuture<Void> future;
+        final int length;
+        final boolean droppable; // A whole message, that the client can do without
+        final Object key; // Conflation key, or null
+        volatile int state = QUEUED;
+
+        Entry(ByteBuffer buffer, PooledBuffer pooled, CompletableFuture<Void> future, boolean droppable, Object key) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+            this.future = future;
+            this.length = buffer.remaining();
+            this.droppable = droppable;
+            this.key = key;
+        }
+
+        void release() {
+            if (pooled != null) {
+                pooled.release();
+            }
+        }
+    }
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private final int capacity;
+    private final long lowWatermark;
+    private final long highWatermark;
+    private final Consumer<Boolean> writabilityListener;
+
+    /**
+     * @param capacity The maximum number of frames waiting to be written
+     * @param lowWatermark The queue becomes writable again when it holds this many bytes or less
+     * @param highWatermark The queue stops being writable when it holds this many bytes or more
+     * @param writabilityListener Told when the queue stops or starts being writable. Called on the thread that caused the change.
+     */
+    OutboundQueue(int capacity, long lowWatermark, long highWatermark, Consumer<Boolean> writabilityListener) {
+        this.capacity = capacity;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.writabilityListener = writabilityListener;
+    }
+
+    /**
+     * Adds a whole message to the back of the queue.
+     * @param buffer The frame to write
+     * @param pooled Released when the frame is written or dropped. May be null.
+     * @param future Completed once the frame is written
+     * @param key A conflation key, or null
+     * @return false if the queue is full, and the frame was not added. The caller still holds the pooled buffer.
+     */
+    boolean offer(ByteBuffer buffer, PooledBuffer pooled, CompletableFuture<Void> future, Object key) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+        Entry e = new Entry(buffer, pooled, future, true, key);
+        entries.add(e);
+        added(e.length);
+        return true;
+    }
+
+    /**
+     * Adds a frame regardless of the capacity, that will not be dropped. Used for control frames and fragments, that must not be lost.
+     */
+    void add(ByteBuffer buffer, CompletableFuture<Void> future) {
+        add(buffer, null, future);
+    }
+
+    void add(ByteBuffer buffer, PooledBuffer pooled, CompletableFuture<Void> future) {
+        size.incrementAndGet();
+        Entry e = new Entry(buffer, pooled, future, false, null);
+        entries.add(e);
+        added(e.length);
+    }
+
+    private void added(int length) {
+        if (bytes.addAndGet(length) >= highWatermark && writable.compareAndSet(true, false)) {
+            writabilityListener.accept(false);
+        }
+    }
+
+    private void removed(int length) {
+        size.decrementAndGet();
+        if (bytes.addAndGet(-length) <= lowWatermark && writable.compareAndSet(false, true)) {
+            writabilityListener.accept(true);
+        }
+    }
+
+    /**
+     * Takes frames from the front of the queue, in order, for a gathering write. Only to be called by the writer.
+     * Frames dropped by other threads are skipped. A frame larger than maxBytes is taken if it is the first one.
+     * A batch holds no more than the low watermark either, as the frames in it can not be dropped until they are given back,
+     * and the backpressure policy must have frames to drop when the queue reaches the high watermark.
+     * @param batch Filled with the frames taken
+     * @param buffers Filled with the buffers of the frames taken
+     * @param maxBytes Stop taking frames once they hold this many bytes
+     * @return The number of frames taken, 0 if the queue is empty
+     */
+    int gather(Entry[] batch, ByteBuffer[] buffers, int maxBytes) {
+        int n = 0;
+        long total = 0;
+        long limit = Math.min(maxBytes, lowWatermark);
+        for (Entry e : entries) {
+            if (n == batch.length || (n > 0 && total >= limit)) break;
+            if (e.state == STARTED || STATE.compareAndSet(e, QUEUED, STARTED)) {
+                batch[n] = e;
+                buffers[n] = e.buffer;
+                total += e.buffer.remaining();
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Called by the writer after a gathering write. Completes the frames that were fully written, and gives back the ones
+     * that were not started on, so the backpressure policy may still drop them. The arrays are cleared.
+     * @param batch The frames from gather()
+     * @param buffers The buffers from gather()
+     * @param n The number of frames
+     * @return true if the whole batch was written
+     */
+    boolean written(Entry[] batch, ByteBuffer[] buffers, int n) {
+        boolean all = true;
+        for (int i=0; i<n; i++) {
+            Entry e = batch[i];
+            if (!e.buffer.hasRemaining()) {
+                complete(e);
+            }
+            else {
+                all = false;
+                if (e.buffer.remaining() == e.length) {
+                    STATE.compareAndSet(e, STARTED, QUEUED);
+                }
+            }
+            batch[i] = null;
+            buffers[i] = null;
+        }
+        return all;
+    }
+
+    private void complete(Entry e) {
+        if (!STATE.compareAndSet(e, STARTED, WRITTEN)) {
+            return; // Failed by failAll() while we wrote it
+        }
+        entries.remove(e); // At or close to the front of the queue
+        removed(e.length);
+        e.release();
+        e.future.complete(null);
+    }
+
+    /**
+     * Empties the queue, failing every frame in it. Used when the connection is gone.
+     */
+    void failAll() {
+        Entry e;
+        while((e = entries.poll()) != null) {
+            int was = STATE.getAndSet(e, DROPPED);
+            if (was == QUEUED || was == STARTED) {
+                removed(e.length);
+                if (was == STARTED && e.pooled != null) {
+                    // The writer may be in the middle of it, if we are not the writer
+                    e.pooled.discard();
+                }
+                else {
+                    e.release();
+                }
+                e.future.completeExceptionally(new IOException("Connection closed"));
+            }
+        }
+    }
+
+    /**
+     * Drops whole messages from the front of the queue, oldest first, until it holds less than the high watermark.
+     * @return The number of messages dropped
+     */
+    int dropOldest() {
+        int dropped = 0;
+        Iterator<Entry> it = entries.iterator();
+        while(bytes.get() >= highWatermark && it.hasNext()) {
+            if (drop(it.next(), "Dropped for a newer message")) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Drops the queued message with the given key, if the writer has not started on it.
+     * @param key The conflation key
+     * @return true if a message was dropped
+     */
+    boolean dropKey(Object key) {
+        for (Entry e : entries) {
+            if (key.equals(e.key) && drop(e, "Replaced by a newer message")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops every message the writer has not started on. Used before giving up on a slow client.
+     */
+    void dropAll() {
+        for (Entry e : entries) {
+            drop(e, "Connection closed");
+        }
+    }
+
+    private boolean drop(Entry e, String reason) {
+        if (!e.droppable || !STATE.compareAndSet(e, QUEUED, DROPPED)) {
+            return false;
+        }
+        entries.remove(e);
+        removed(e.length);
+        e.release();
+        e.future.completeExceptionally(new IOException(reason));
+        return true;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return The number of frames waiting to be written
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return The number of bytes waiting to be written
+     */
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return false from the queue reaches the high watermark, until it is drained to the low watermark
+     */
+    boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * @return true if the caller has become the writer, and must see that the queue is drained
+     */
+    boolean tryScheduleDrain() {
+        return drainScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by the writer when it stops draining.
+     * @return true if frames were added after the writer saw the queue empty, and the caller is still the writer
+     */
+    boolean drainDone() {
+        drainScheduled.set(false);
+        return !entries.isEmpty() && drainScheduled.compareAndSet(false, true);
+    }
+}
@@ -0,0 +1,298 @@
+package jaws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PerMessageDeflate.java
+ *
+ * The permessage-deflate extension (RFC 7692), as agreed with a single client.
+ * An object of this class is created during the handshake if the client offers the extension and the server has it enabled,
+ * and is then used by the Connection to compress outgoing and inflate incoming messages.
+ * <p>
+ * When a side does not take over its compression context between messages, the Deflater or Inflater is only needed while a message
+ * is processed, and is borrowed from a pool shared by all connections. Otherwise the connection keeps its own until it is closed.
+ * <p>
+ * java.util.zip always compresses with a 32K window, so we only accept offers that let the server use 15 window bits.
+ * The window the client compresses with can be limited, as an Inflater handles any window size.
+ */
+class PerMessageDeflate {
+
+    static final String EXTENSION = "permessage-deflate";
+
+    static final int MIN_WINDOW_BITS = 8;
+    static final int MAX_WINDOW_BITS = 15;
+
+    // Messages smaller than this are sent uncompressed. The extension lets us decide per message.
+    static final int MIN_COMPRESS_SIZE = 64;
+
+    private static final byte[] TAIL = {0x00, 0x00, (byte)0xFF, (byte)0xFF}; // Removed from every compressed message, see RFC 7692 7.2.1
+    private static final int MAX_POOLED = 256;
+
+    private static final Queue<Deflater> deflaterPool = new ConcurrentLinkedQueue<Deflater>();
+    private static final Queue<Inflater> inflaterPool = new ConcurrentLinkedQueue<Inflater>();
+
+    /**
+     * What the server is willing to agree to. Set on the JaWS-object.
+     */
+    static final class Options {
+        final boolean serverContextTakeover;
+        final boolean clientContextTakeover;
+        final int clientMaxWindowBits;
+
+        Options(boolean serverContextTakeover, boolean clientContextTakeover, int clientMaxWindowBits) {
+            this.serverContextTakeover = serverContextTakeover;
+            this.clientContextTakeover = clientContextTakeover;
+            this.clientMaxWindowBits = clientMaxWindowBits;
+        }
+    }
+
+    final boolean serverNoContextTakeover;
+    final boolean clientNoContextTakeover;
+    final int clientMaxWindowBits; // 0 if the client did not offer the parameter, and we did not send it
+
+    private Deflater deflater; // Only kept between messages when the server takes over context
+    private Inflater inflater; // Kept for the whole message, and between messages when the client takes over context
+    private boolean released = false; // Guarded by this
+
+    private PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover, int clientMaxWindowBits) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.clientMaxWindowBits = clientMaxWindowBits;
+    }
+
+    /**
+     * Picks the first acceptable permessage-deflate offer from the client.
+     * @param header The value of the Sec-WebSocket-Extensions header, or null if it was not sent
+     * @param options What the server allows. null if the extension is disabled.
+     * @return The agreed parameters, or null if no offer could be accepted
+     */
+    static PerMessageDeflate negotiate(String header, Options options) {
+        if (header == null || options == null) return null;
+
+        for (String offer : header.split(",")) {
+            PerMessageDeflate agreed = accept(offer, options);
+            if (agreed != null) {
+                return agreed;
+            }
+        }
+        return null;
+    }
+
+    private static PerMessageDeflate accept(String offer, Options options) {
+        String[] parts = offer.split(";");
+        if (!parts[0].trim().equalsIgnoreCase(EXTENSION)) return null;
+
+        boolean serverNoContextTakeover = !options.serverContextTakeover;
+        boolean clientNoContextTakeover = !options.clientContextTakeover;
+        int clientMaxWindowBits = 0;
+        boolean seenServerNct = false, seenClientNct = false, seenServerBits = false, seenClientBits = false;
+
+        for (int i=1; i<parts.length; i++) {
+            String param = parts[i].trim();
+            String value = null;
+            int eq = param.indexOf('=');
+            if (eq >= 0) {
+                value = param.substring(eq+1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length()-1);
+                }
+                param = param.substring(0, eq).trim();
+            }
+
+            if (param.equalsIgnoreCase("server_no_context_takeover") && value == null && !seenServerNct) {
+                seenServerNct = true;
+                serverNoContextTakeover = true;
+            }
+            else if (param.equalsIgnoreCase("client_no_context_takeover") && value == null && !seenClientNct) {
+                seenClientNct = true;
+                clientNoContextTakeover = true;
+            }
+            else if (param.equalsIgnoreCase("server_max_window_bits") && !seenServerBits) {
+                seenServerBits = true;
+                // We can not compress with a smaller window than 15 bits
+                if (windowBits(value) != MAX_WINDOW_BITS) return null;
+            }
+            else if (param.equalsIgnoreCase("client_max_window_bits") && !seenClientBits) {
+                seenClientBits = true;
+                int offered = value == null ? MAX_WINDOW_BITS : windowBits(value);
+                if (offered < 0) return null;
+                clientMaxWindowBits = Math.min(offered, options.clientMaxWindowBits);
+            }
+            else {
+                // Unknown, invalid or repeated parameter. Decline this offer.
+                return null;
+            }
+        }
+        return new PerMessageDeflate(serverNoContextTakeover, clientNoContextTakeover, clientMaxWindowBits);
+    }
+
+    private static int windowBits(String value) {
+        if (value == null) return -1;
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= MIN_WINDOW_BITS && bits <= MAX_WINDOW_BITS ? bits : -1;
+        }
+        catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The Sec-WebSocket-Extensions value to send in the handshake response
+     */
+    String responseHeader() {
+        StringBuilder sb = new StringBuilder(EXTENSION);
+        if (serverNoContextTakeover) {
+            sb.append("; server_no_context_takeover");
+        }
+        if (clientNoContextTakeover) {
+            sb.append("; client_no_context_takeover");
+        }
+        if (clientMaxWindowBits > 0) {
+            sb.append("; client_max_window_bits=").append(clientMaxWindowBits);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compresses a whole message. When the server takes over context, the caller must hold the lock on this object
+     * from the call until the frame is queued, so messages reach the client in the order they were compressed.
+     * @param payload The message
+     * @return The compressed payload, without the trailing 0x00 0x00 0xFF 0xFF
+     */
+    byte[] compress(byte[] payload) {
+        if (serverNoContextTakeover) {
+            return compressWithoutContext(payload);
+        }
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        return compress(deflater, payload);
+    }
+
+    /**
+     * Compresses a message with a fresh context. The result is the same for every connection that has agreed to server_no_context_takeover,
+     * so a broadcast only needs to do this once.
+     * @param payload The message
+     * @return The compressed payload, without the trailing 0x00 0x00 0xFF 0xFF
+     */
+    static byte[] compressWithoutContext(byte[] payload) {
+        Deflater d = deflaterPool.poll();
+        if (d == null) {
+            d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            return compress(d, payload);
+        }
+        finally {
+            d.reset();
+            if (deflaterPool.size() < MAX_POOLED) {
+                deflaterPool.add(d);
+            }
+            else {
+                d.end();
+            }
+        }
+    }
+
+    private static byte[] compress(Deflater d, byte[] payload) {
+        d.setInput(payload);
+
+        byte[] out = new byte[Math.max(64, payload.length / 2)];
+        int length = 0;
+        while(true) {
+            int n = d.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            length += n;
+            if (length < out.length) {
+                break; // The flush fit in the space we had, so it is complete
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        // A sync flush always ends with an empty stored block, which the extension removes
+        return Arrays.copyOf(out, length - TAIL.length);
+    }
+
+    /**
+     * Inflates one frame of a compressed message. Frames must be given in order, and the last one with fin set.
+     * @param payload The compressed payload of the frame
+     * @param fin true if this is the last frame of the message
+     * @param maxBytes The most bytes the frame may inflate to
+     * @return The inflated bytes of this frame
+     * @throws IOException If the client sent data that is not valid deflate data, or the connection is closed.
+     * A CloseException if it inflates to more than maxBytes, which stops a small frame from filling the heap.
+     */
+    synchronized byte[] inflate(byte[] payload, boolean fin, long maxBytes) throws IOException {
+        if (released) {
+            // The reader may still be handling a frame when the connection is closed. A new Inflater would never be ended.
+            throw new IOException("Connection closed");
+        }
+        if (inflater == null) {
+            inflater = clientNoContextTakeover ? inflaterPool.poll() : null;
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, payload.length * 2));
+            inflate(payload, out, maxBytes);
+            if (fin) {
+                inflate(TAIL, out, maxBytes);
+            }
+            return out.toByteArray();
+        }
+        catch(DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        }
+        finally {
+            if (fin && clientNoContextTakeover && inflater != null) {
+                inflater.reset();
+                if (inflaterPool.size() < MAX_POOLED) {
+                    inflaterPool.add(inflater);
+                }
+                else {
+                    inflater.end();
+                }
+                inflater = null;
+            }
+        }
+    }
+
+    private void inflate(byte[] input, ByteArrayOutputStream out, long maxBytes) throws DataFormatException, CloseException {
+        byte[] chunk = new byte[Math.min(64 * 1024, Math.max(256, input.length * 4))];
+        inflater.setInput(input);
+        while(true) {
+            int n = inflater.inflate(chunk);
+            out.write(chunk, 0, n);
+            if (out.size() > maxBytes) {
+                throw new CloseException(CloseException.MESSAGE_TOO_BIG, "Message inflates to more than "+maxBytes+" bytes");
+            }
+            if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Releases the Deflater and Inflater kept by this connection. Called when the connection is closed. Inflating fails after this.
+     * Compressing is not expected after this, as it is done under the same lock, only while the connection is open.
+     */
+    synchronized void release() {
+        released = true;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
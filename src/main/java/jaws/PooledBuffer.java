@@ -0,0 +1,69 @@
+package jaws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PooledBuffer.java
+ *
+ * A buffer borrowed from the BufferPool, with a reference count. It goes back to the pool when the count reaches zero.
+ * A frame queued for a single connection has one reference, released once it is written or dropped.
+ * A frame shared by a broadcast takes one reference for every connection it is queued for, and each writes from its own duplicate().
+ * <p>
+ * The handle and its buffer stay together for as long as they live, so borrowing and returning allocates nothing.
+ */
+final class PooledBuffer {
+
+    final ByteBuffer buffer;
+    final int sizeClass; // Index in the pool, or -1 for a buffer too large to pool
+
+    private final AtomicInteger references = new AtomicInteger(0);
+    private volatile boolean discarded; // Set when a writer may still be reading the buffer, so it must not be reused
+    volatile BufferPool.LeakTracker tracker; // Only set when leak detection is on
+
+    PooledBuffer(ByteBuffer buffer, int sizeClass) {
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * Called by the pool when the buffer is handed out.
+     */
+    void borrowed() {
+        references.set(1);
+        discarded = false;
+    }
+
+    /**
+     * Takes another reference. Must be called by someone who already holds one.
+     * @return This buffer
+     */
+    PooledBuffer retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Buffer retained after it was released");
+        }
+        return this;
+    }
+
+    /**
+     * Gives up a reference. The last one returns the buffer to the pool.
+     */
+    void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            BufferPool.giveBack(this, discarded);
+        }
+        else if (left < 0) {
+            throw new IllegalStateException("Buffer released more times than it was retained");
+        }
+    }
+
+    /**
+     * Gives up a reference to a buffer that a writer on another thread may still be reading.
+     * The buffer is left to the garbage collector instead of being lent out again.
+     */
+    void discard() {
+        discarded = true;
+        release();
+    }
+}
@@ -0,0 +1,97 @@
+package jaws;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ReaderChannel.java
+ *
+ * Reads characters from a Reader, and hands them out as UTF-8 bytes.
+ * Used to stream text messages from a Reader. Surrogate pairs split between two reads are kept until the second half arrives.
+ * A character that does not fit in the end of the buffer is encoded aside, and handed out at the start of the next read,
+ * so every read but the last fills the buffer, and a character may be split between two fragments.
+ */
+class ReaderChannel implements ReadableByteChannel {
+
+    private final Reader reader;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final CharBuffer chars = CharBuffer.allocate(4096);
+    private final ByteBuffer pending = ByteBuffer.allocate(4); // The bytes of a character that did not fit, between position and limit
+
+    private boolean endOfInput = false;
+    private boolean flushed = false;
+    private boolean open = true;
+
+    ReaderChannel(Reader reader) {
+        this.reader = reader;
+        chars.flip(); // Start out empty, ready for reading
+        pending.flip();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        drainPending(dst);
+
+        while(dst.hasRemaining() && !flushed) {
+            CoderResult result = encoder.encode(chars, dst, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isOverflow()) {
+                // The next character is longer than the space left. Encode it aside, and hand out as much of it as fits.
+                pending.clear();
+                result = encoder.encode(chars, pending, endOfInput);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                pending.flip();
+                drainPending(dst);
+                continue;
+            }
+
+            // Underflow. We need more characters, or we are done.
+            if (endOfInput) {
+                if (encoder.flush(dst).isOverflow()) {
+                    break;
+                }
+                flushed = true;
+            }
+            else {
+                chars.compact();
+                if (reader.read(chars) < 0) {
+                    endOfInput = true;
+                }
+                chars.flip();
+            }
+        }
+
+        int n = dst.position() - start;
+        return n == 0 && flushed ? -1 : n;
+    }
+
+    private void drainPending(ByteBuffer dst) {
+        while(pending.hasRemaining() && dst.hasRemaining()) {
+            dst.put(pending.get());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closing the channel does not close the Reader, which belongs to the caller.
+     */
+    @Override
+    public void close() {
+        open = false;
+    }
+}
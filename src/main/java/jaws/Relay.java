@@ -0,0 +1,584 @@
+package jaws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Relay.java
+ *
+ * Links JaWS servers in other processes, or on other hosts, so a broadcast, or a message published to a topic, reaches the
+ * clients of all of them.
+ * Relays are linked by plain TCP connections. A relay listens for other relays, connects to the ones it is given, and keeps
+ * reconnecting to them while they are down.
+ * <p>
+ * A message travels over the links as the frame that was packed for the local clients, so the other servers queue the same bytes
+ * without encoding the message again, with its conflation key if that is a string. Every message carries the id of the server it was first sent from, and a sequence number.
+ * A relay passes a message it has not seen before on to all its other links, so the servers only need to be linked to each other
+ * somehow, in a chain, a star or a full mesh. A message that arrives again, over another path, is dropped.
+ * <p>
+ * Every link has a writer thread, that writes everything queued for the link since its last write in one go. A burst of broadcasts
+ * costs a few system calls and TCP segments, not one for each message. A link that falls more than MAX_PENDING_BYTES behind drops
+ * new messages. Nothing is stored to be sent again, so messages sent while a link is down are not delivered over it.
+ * <p>
+ * A relay listens on the loopback address unless it is given another. Relays that are reachable from other hosts should share a
+ * secret: both ends of a link then prove they know it, with an HMAC of a random nonce sent by the other end, before any message
+ * is passed. The secret itself is never sent. Records longer than any relay sends close the link.
+ */
+class Relay {
+
+    private static final int MAGIC = 0x4A615753; // "JaWS"
+    private static final int VERSION = 3;
+
+    static final byte BROADCAST = 0; // The type of a record holding a broadcast frame
+    static final byte TOPIC = 1; // The type of a record holding a frame published to a topic. The topic comes before the frame.
+
+    private static final int HEADER = 17; // Type, origin and sequence number, after the length of the record. Then the topic, if any, the key and the frame.
+    private static final int NO_KEY = 0xFFFF; // In place of the length of the key
+    private static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_RECORD = HEADER + 2 + 0xFFFF + 2 + 0xFFFF + MAX_PENDING_BYTES; // Links drop longer records
+    private static final int NONCE_SIZE = 16;
+    private static final int PROOF_SIZE = 32; // HMAC-SHA256
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 2000; // Milliseconds, also used for the relay handshake
+    private static final int MIN_RETRY = 250; // Milliseconds between attempts to reach a peer, doubled for every failure
+    private static final int MAX_RETRY = 16000;
+
+    final long nodeId; // Random, so a restarted server is a new origin with new sequence numbers
+    private final JaWS jaws;
+    private final ServerSocket listener; // null if this relay only connects to others
+    private final SecretKeySpec secret; // null if links are not authenticated
+    private final AtomicLong sequence = new AtomicLong();
+    private final CopyOnWriteArrayList<Link> links = new CopyOnWriteArrayList<Link>();
+    private final List<Thread> threads = new CopyOnWriteArrayList<Thread>(); // Acceptor and connectors, interrupted on close
+    private final ConcurrentHashMap<Long, SequenceWindow> seen = new ConcurrentHashMap<Long, SequenceWindow>();
+    private volatile boolean running = true;
+
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder batches = new LongAdder();
+
+    /**
+     * @param jaws The server to deliver relayed messages to
+     * @param bindAddress The address to listen on
+     * @param port The port to listen for other relays on, 0 for any free port, or -1 to not listen
+     * @param secret The secret every other relay must know, or null to link to any relay
+     */
+    Relay(JaWS jaws, InetAddress bindAddress, int port, byte[] secret) throws IOException {
+        this.jaws = jaws;
+        this.nodeId = new SecureRandom().nextLong();
+        this.secret = secret != null ? new SecretKeySpec(secret, "HmacSHA256") : null;
+        this.listener = port >= 0 ? new ServerSocket(port, 50, bindAddress) : null;
+        if (listener != null) {
+            threads.add(daemon(this::acceptLoop, "JaWS-relay-acceptor"));
+        }
+    }
+
+    /**
+     * @return The port this relay listens on, or -1 if it does not listen
+     */
+    int getPort() {
+        return listener != null ? listener.getLocalPort() : -1;
+    }
+
+    /**
+     * Keeps a link to the relay of another server. Links to this server itself are noticed and given up.
+     * @param address Where the other relay listens
+     */
+    void connect(InetSocketAddress address) {
+        threads.add(daemon(() -> connectLoop(address), "JaWS-relay-"+address));
+    }
+
+    /**
+     * Sends a broadcast to every other server.
+     * @param frame The packed frame, as queued for the local clients. Not to be changed after this.
+     * @param key The conflation key, or null. Only strings are sent, other keys are left out.
+     */
+    void publish(byte[] frame, Object key) {
+        forward(new Record(BROADCAST, nodeId, sequence.getAndIncrement(), null, relayedKey(key), frame), null);
+    }
+
+    /**
+     * Sends a message published to a topic to every other server.
+     * @param topic The name of the topic
+     * @param frame The packed frame. Not to be changed after this.
+     * @param key The conflation key, or null. Only strings are sent, other keys are left out.
+     */
+    void publish(String topic, byte[] frame, Object key) {
+        Record record = new Record(TOPIC, nodeId, sequence.getAndIncrement(), topic, relayedKey(key), frame);
+        if (record.topicBytes.length > 0xFFFF) {
+            Logger.logErr("Topic name too long to relay: {}", topic.substring(0, 100), Logger.GENERAL);
+            return;
+        }
+        forward(record, null);
+    }
+
+    private static String relayedKey(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String s = (String)key;
+        if (s.length() * 3 >= NO_KEY && s.getBytes(StandardCharsets.UTF_8).length >= NO_KEY) {
+            Logger.logErr("Conflation key too long to relay: {}", s.substring(0, 100), Logger.GENERAL);
+            return null;
+        }
+        return s;
+    }
+
+    private void forward(Record record, Link from) {
+        for (Link link : links) {
+            if (link != from) {
+                link.offer(record);
+            }
+        }
+    }
+
+    /**
+     * Called by the reader of a link for every record it reads.
+     */
+    private void onRecord(Record record, Link from) {
+        if (record.origin == nodeId) {
+            duplicates.increment();
+            return;
+        }
+        SequenceWindow window = seen.computeIfAbsent(record.origin, o -> new SequenceWindow());
+        // Other links may bring the next message from the same origin at the same time. It must not be passed on before this one.
+        synchronized(window) {
+            if (!window.accept(record.seq)) {
+                duplicates.increment();
+                return;
+            }
+            received.increment();
+            forward(record, from);
+            if (record.type == BROADCAST || record.type == TOPIC) {
+                jaws.deliverRelayed(record.topic, record.key, record.frame);
+            }
+            // Else a type from a newer version, which is passed on, but means nothing to this server
+        }
+    }
+
+    void close() {
+        running = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        for (Link link : links) {
+            link.close();
+        }
+    }
+
+    RelayMetrics metrics() {
+        return new RelayMetrics(links.size(), sent.sum(), received.sum(), duplicates.sum(), dropped.sum(), batches.sum());
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch(IOException ignored) {
+            // Nothing more we can do
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private void acceptLoop() {
+        while(running) {
+            try {
+                Socket socket = listener.accept();
+                daemon(() -> {
+                    try {
+                        runLink(socket, false);
+                    }
+                    catch(IOException e) {
+                        Logger.log("Relay link from {} lost: {}", socket.getRemoteSocketAddress(), e.getMessage(), Logger.GENERAL);
+                    }
+                }, "JaWS-relay-"+socket.getRemoteSocketAddress());
+            }
+            catch(IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+                // Else ignore. The relay is closed.
+            }
+        }
+    }
+
+    private void connectLoop(InetSocketAddress address) {
+        int retry = MIN_RETRY;
+        while(running) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, CONNECT_TIMEOUT);
+                if (!runLink(socket, true)) {
+                    return;
+                }
+                retry = MIN_RETRY; // The link was up, so try again soon
+            }
+            catch(IOException e) {
+                Logger.log("Relay link to {} lost: {}", address, e.getMessage(), Logger.GENERAL);
+                closeQuietly(socket);
+            }
+            try {
+                Thread.sleep(retry);
+            }
+            catch(InterruptedException e) {
+                return; // Closed
+            }
+            retry = Math.min(retry * 2, MAX_RETRY);
+        }
+    }
+
+    /**
+     * Greets the relay at the other end, and reads from the link until it fails. The socket is closed when this returns.
+     * @param outbound true if this relay made the connection
+     * @return false if the link should not be tried again, as the other end is this relay, or it is already linked another way
+     */
+    private boolean runLink(Socket socket, boolean outbound) throws IOException {
+        Link link = null;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            byte[] nonce = new byte[NONCE_SIZE];
+            new SecureRandom().nextBytes(nonce);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nodeId);
+            out.write(nonce);
+            out.flush();
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a JaWS relay, or another version");
+            }
+            long remoteId = in.readLong();
+            byte[] remoteNonce = new byte[NONCE_SIZE];
+            in.readFully(remoteNonce);
+            if (remoteId == nodeId || !running) {
+                return false;
+            }
+            // Each end proves it knows the secret for the nonce of the other, and its own id, so a proof can not be replayed
+            out.write(proof(remoteNonce, nodeId));
+            out.flush();
+            byte[] remoteProof = new byte[PROOF_SIZE];
+            in.readFully(remoteProof);
+            if (secret != null && !MessageDigest.isEqual(remoteProof, proof(nonce, remoteId))) {
+                throw new IOException("The relay does not know the secret");
+            }
+            socket.setSoTimeout(0);
+
+            Link up = new Link(socket, out, remoteId, outbound ? nodeId : remoteId);
+            if (!register(up)) {
+                return false;
+            }
+            link = up;
+            Logger.log("Relay linked to {}", socket.getRemoteSocketAddress(), Logger.GENERAL);
+            daemon(up::writeLoop, "JaWS-relay-writer-"+socket.getRemoteSocketAddress());
+            up.readLoop(in);
+            return true;
+        }
+        catch(EOFException e) {
+            return true; // The other end closed the link
+        }
+        finally {
+            if (link != null) {
+                links.remove(link);
+                link.close();
+            }
+            else {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * @return The HMAC of the nonce and the id with the secret, or zeros if there is no secret
+     */
+    private byte[] proof(byte[] nonce, long id) throws IOException {
+        if (secret == null) {
+            return new byte[PROOF_SIZE];
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(nonce);
+            for (int i = 56; i >= 0; i -= 8) {
+                mac.update((byte)(id >>> i));
+            }
+            return mac.doFinal();
+        }
+        catch(GeneralSecurityException e) {
+            throw new IOException("Could not authenticate the relay link", e);
+        }
+    }
+
+    /**
+     * Adds a link, unless the two relays are already linked. When both have been told of each other, they connect both ways,
+     * and one of the links must go, or every message is sent twice. Both ends keep the link made by the relay with the lowest id.
+     * @return false if the link is not needed
+     */
+    private boolean register(Link link) {
+        synchronized(links) {
+            for (Link other : links) {
+                if (other.remoteId == link.remoteId) {
+                    if (other.initiator < link.initiator) {
+                        return false;
+                    }
+                    other.close(); // Its reader removes it. A link made by the same relay is an old one that is not yet noticed to be lost.
+                }
+            }
+            links.add(link);
+            return true;
+        }
+    }
+
+    /**
+     * A message on its way between relays. Immutable, and shared by the links it is queued for.
+     */
+    static final class Record {
+        final byte type;
+        final long origin;
+        final long seq;
+        final String topic; // null unless the type is TOPIC
+        final byte[] topicBytes; // The topic as UTF-8, or an empty array
+        final String key; // null if the message has no conflation key
+        final byte[] keyBytes; // The key as UTF-8, or null
+        final byte[] frame;
+
+        Record(byte type, long origin, long seq, String topic, String key, byte[] frame) {
+            this.type = type;
+            this.origin = origin;
+            this.seq = seq;
+            this.topic = topic;
+            this.topicBytes = topic != null ? topic.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            this.key = key;
+            this.keyBytes = key != null ? key.getBytes(StandardCharsets.UTF_8) : null;
+            this.frame = frame;
+        }
+
+        /**
+         * @return true if the record has a key field, which only types known to this version have
+         */
+        boolean keyed() {
+            return type == BROADCAST || type == TOPIC;
+        }
+
+        /**
+         * @return The bytes of the record after its length
+         */
+        int length() {
+            int length = HEADER + frame.length;
+            if (type == TOPIC) {
+                length += 2 + topicBytes.length;
+            }
+            if (keyed()) {
+                length += 2 + (keyBytes != null ? keyBytes.length : 0);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * A connection to another relay. Written by its own writer thread, and read by the thread that set it up.
+     */
+    private final class Link {
+        private final Socket socket;
+        private final DataOutputStream out;
+        final long remoteId;
+        final long initiator; // The id of the relay that made the connection
+        private final ArrayDeque<Record> pending = new ArrayDeque<Record>(); // Guarded by itself
+        private long pendingBytes;
+        private boolean closed;
+
+        Link(Socket socket, DataOutputStream out, long remoteId, long initiator) {
+            this.socket = socket;
+            this.out = out;
+            this.remoteId = remoteId;
+            this.initiator = initiator;
+        }
+
+        void offer(Record record) {
+            synchronized(pending) {
+                if (closed) {
+                    return;
+                }
+                if (pendingBytes + record.frame.length > MAX_PENDING_BYTES) {
+                    dropped.increment();
+                    return;
+                }
+                pending.add(record);
+                pendingBytes += record.frame.length;
+                if (pending.size() == 1) {
+                    pending.notify();
+                }
+            }
+        }
+
+        /**
+         * Writes everything queued since the last write together, until the link is closed.
+         */
+        void writeLoop() {
+            ArrayList<Record> batch = new ArrayList<Record>();
+            try {
+                while(true) {
+                    synchronized(pending) {
+                        while(pending.isEmpty() && !closed) {
+                            pending.wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        batch.addAll(pending);
+                        pending.clear();
+                        pendingBytes = 0;
+                    }
+                    for (Record r : batch) {
+                        out.writeInt(r.length());
+                        out.writeByte(r.type);
+                        out.writeLong(r.origin);
+                        out.writeLong(r.seq);
+                        if (r.type == TOPIC) {
+                            out.writeShort(r.topicBytes.length);
+                            out.write(r.topicBytes);
+                        }
+                        if (r.keyed()) {
+                            out.writeShort(r.keyBytes != null ? r.keyBytes.length : NO_KEY);
+                            if (r.keyBytes != null) {
+                                out.write(r.keyBytes);
+                            }
+                        }
+                        out.write(r.frame);
+                    }
+                    out.flush();
+                    sent.add(batch.size());
+                    batches.increment();
+                    batch.clear();
+                }
+            }
+            catch(InterruptedException e) {
+                // Closed
+            }
+            catch(IOException e) {
+                if (!socket.isClosed()) {
+                    Logger.log("Relay write to {} failed: {}", socket.getRemoteSocketAddress(), e.getMessage(), Logger.GENERAL);
+                }
+            }
+            finally {
+                close(); // Also stops the reader, which removes the link
+            }
+        }
+
+        void readLoop(DataInputStream in) throws IOException {
+            while(true) {
+                int length = in.readInt();
+                if (length < HEADER || length > MAX_RECORD) {
+                    throw new IOException("Bad relay record length "+length);
+                }
+                byte type = in.readByte();
+                long origin = in.readLong();
+                long seq = in.readLong();
+                String topic = null;
+                if (type == TOPIC) {
+                    byte[] topicBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(topicBytes);
+                    topic = new String(topicBytes, StandardCharsets.UTF_8);
+                    length -= 2 + topicBytes.length;
+                }
+                String key = null;
+                if (type == BROADCAST || type == TOPIC) {
+                    int keyLength = in.readUnsignedShort();
+                    length -= 2;
+                    if (keyLength != NO_KEY) {
+                        byte[] keyBytes = new byte[keyLength];
+                        in.readFully(keyBytes);
+                        key = new String(keyBytes, StandardCharsets.UTF_8);
+                        length -= keyLength;
+                    }
+                }
+                if (length < HEADER) {
+                    throw new IOException("Bad relay record length");
+                }
+                byte[] frame = new byte[length - HEADER];
+                in.readFully(frame);
+                onRecord(new Record(type, origin, seq, topic, key, frame), this);
+            }
+        }
+
+        void close() {
+            synchronized(pending) {
+                closed = true;
+                pending.clear();
+                pending.notify();
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * The sequence numbers seen from one origin: the highest, and which of the 64 before it.
+     * Messages from an origin arrive in order over a single path, and only a little out of order over several.
+     * A message older than the window is taken as a duplicate. Guarded by itself.
+     */
+    static final class SequenceWindow {
+        private long highest = -1;
+        private long bits; // Bit i is set if highest-i has been seen
+
+        /**
+         * @return true if the sequence number is seen for the first time
+         */
+        boolean accept(long seq) {
+            if (seq > highest) {
+                long shift = seq - highest;
+                bits = shift >= 64 ? 1 : (bits << shift) | 1;
+                highest = seq;
+                return true;
+            }
+            long age = highest - seq;
+            if (age >= 64) {
+                return false;
+            }
+            long bit = 1L << age;
+            if ((bits & bit) != 0) {
+                return false;
+            }
+            bits |= bit;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package jaws;
+
+/**
+ * RelayMetrics.java
+ *
+ * The statistics of the relay linking a server to other servers, at one point in time. All zero if the relay is not enabled.
+ */
+public final class RelayMetrics {
+
+    private final int links;
+    private final long sent;
+    private final long received;
+    private final long duplicates;
+    private final long dropped;
+    private final long batches;
+
+    RelayMetrics(int links, long sent, long received, long duplicates, long dropped, long batches) {
+        this.links = links;
+        this.sent = sent;
+        this.received = received;
+        this.duplicates = duplicates;
+        this.dropped = dropped;
+        this.batches = batches;
+    }
+
+    /**
+     * @return The number of links to other servers that are up
+     */
+    public int getLinks() {
+        return links;
+    }
+
+    /**
+     * @return The number of messages written to links, counting a message once for every link it is written to
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return The number of messages recieved from other servers, not counting duplicates
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return The number of messages recieved again over another path, or sent by this server and coming back, that were dropped
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return The number of messages not sent over a link, as too much was already waiting to be written to it
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The number of writes to links. Messages queued together are written together, so this is usually lower than getSent().
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    @Override
+    public String toString() {
+        return "links="+links+" sent="+sent+" received="+received+" duplicates="+duplicates+" dropped="+dropped+" batches="+batches;
+    }
+}
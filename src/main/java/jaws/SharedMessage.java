@@ -0,0 +1,99 @@
+package jaws;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SharedMessage.java
+ *
+ * A message sent to many connections, such as a broadcast.
+ * Each encoding of the message is made the first time a connection asks for it, and then shared by all connections that can use it.
+ * The encodings are pooled direct buffers. Every connection takes a reference, and writes from its own duplicate().
+ * The message itself holds the first reference of each, and gives them up once the message is released by everyone who holds it:
+ * the sender, once the message is queued everywhere, and the LastValueCache, while the message is the latest value of its key.
+ */
+class SharedMessage {
+
+    final Frame.OpCode opcode;
+    final byte[] payload; // null if the message was given to us as an encoded frame
+
+    long sequence; // The sequence number in the journal, or 0 if the message is not journaled. Set before it is sent.
+    String topic; // The topic it is published to, or null for a broadcast. Set with the sequence number.
+
+    private PooledBuffer frame;
+    private PooledBuffer compressedFrame;
+    private int references = 1; // The sender's. Guarded by this.
+
+    SharedMessage(Frame.OpCode opcode, byte[] payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+    }
+
+    /**
+     * @param preEncodedFrame A complete, unmasked frame. It can not be compressed.
+     */
+    SharedMessage(byte[] preEncodedFrame) {
+        this.opcode = null;
+        this.payload = null;
+        this.frame = Frame.encode(preEncodedFrame);
+    }
+
+    /**
+     * @return true if a connection using permessage-deflate should send this message compressed
+     */
+    boolean isCompressible() {
+        return payload != null && payload.length >= PerMessageDeflate.MIN_COMPRESS_SIZE;
+    }
+
+    /**
+     * @return The message as an uncompressed frame. The caller must retain() it to keep it.
+     */
+    synchronized PooledBuffer frame() {
+        if (frame == null) {
+            frame = Frame.encodeDataFrame(opcode, ByteBuffer.wrap(payload));
+        }
+        return frame;
+    }
+
+    /**
+     * @return The message compressed without context, for connections that agreed to server_no_context_takeover.
+     * The caller must retain() it to keep it.
+     */
+    synchronized PooledBuffer compressedFrame() {
+        if (compressedFrame == null) {
+            compressedFrame = Frame.encodeCompressedFrame(opcode, PerMessageDeflate.compressWithoutContext(payload));
+        }
+        return compressedFrame;
+    }
+
+    /**
+     * @return The bytes the message takes, counted by the LastValueCache
+     */
+    int size() {
+        return payload != null ? payload.length : frame.buffer.remaining();
+    }
+
+    /**
+     * Takes a reference to the message, so it can be sent after the sender has released it.
+     */
+    synchronized void retain() {
+        references++;
+    }
+
+    /**
+     * Gives up a reference. The encodings are given back to the pool with the last one.
+     * The sender calls this once the message has been queued for every connection.
+     */
+    synchronized void release() {
+        if (--references > 0) {
+            return;
+        }
+        if (frame != null) {
+            frame.release();
+            frame = null;
+        }
+        if (compressedFrame != null) {
+            compressedFrame.release();
+            compressedFrame = null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package jaws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SpillFile.java
+ *
+ * A temporary file that a large incoming message is written to as it arrives, instead of being kept on the heap.
+ * Once the message is complete, the file is mapped into memory, and the mapping is given to the event handler.
+ * <p>
+ * The file is opened with DELETE_ON_CLOSE, and the channel is closed as soon as the file is mapped, so the file is gone from the
+ * directory at once, or when the channel is closed on systems that can not remove open files. The mapping stays valid until the
+ * buffer is garbage collected. Nothing is left behind if the connection is lost in the middle of a message, or the JVM dies.
+ */
+class SpillFile {
+
+    private final FileChannel channel;
+    private long length = 0;
+
+    private SpillFile(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param directory The directory to create the file in, or null for the default temporary directory
+     * @return A new, empty file
+     */
+    static SpillFile create(Path directory) throws IOException {
+        Path dir = directory != null ? directory : Paths.get(System.getProperty("java.io.tmpdir"));
+        Path path = Files.createTempFile(dir, "jaws-", ".spill");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        return new SpillFile(channel);
+    }
+
+    /**
+     * Appends bytes to the file.
+     * @param bytes The bytes to append
+     */
+    void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining()) {
+            length += channel.write(buffer, length);
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Maps the whole file, and closes it. The file can not be written to after this.
+     * @return The content of the file, as a read-only buffer
+     * @throws IOException If the file could not be mapped, or is longer than a buffer can be
+     */
+    ByteBuffer map() throws IOException {
+        try {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Can not map "+length+" bytes as a single buffer");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        finally {
+            discard();
+        }
+    }
+
+    /**
+     * Closes the file, which deletes it. Used when the message is abandoned.
+     */
+    void discard() {
+        try {
+            channel.close();
+        }
+        catch(IOException e) {
+            Logger.logErr("Could not close spill file: {}", e.getMessage(), Logger.GENERAL);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package jaws;
+
+import java.nio.ByteBuffer;
+
+/**
+ * StreamingEventHandler.java
+ *
+ * An event handler that recieves large and fragmented messages piece by piece, instead of as one String or ByteBuffer.
+ * Register it with the JaWS-object like any other WebSocketEventHandler.
+ * <p>
+ * A message that arrives whole, in a single frame no larger than the streaming chunk size of the JaWS-object,
+ * is still given to onMessage() or onBinaryMessage(). Every other message is given to onMessageChunk(), one chunk at a time,
+ * so the whole message is never held in memory.
+ */
+public interface StreamingEventHandler extends WebSocketEventHandler {
+    /**
+     * Called for every chunk of a message that did not arrive whole.
+     * The chunks of a message are given in order, and no other message from the same connection is given before the last chunk.
+     * <p>
+     * Chunks of text messages are the raw UTF-8 bytes, and a chunk may end in the middle of a character. The bytes are checked
+     * to be valid UTF-8 before the chunk is given, and the connection is closed with status 1007 instead if they are not.
+     * @param con The connection the message came from
+     * @param chunk The next piece of the message, between position and limit. It belongs to the handler after the call.
+     * @param binary true if this is a binary message, false if it is text
+     * @param last true for the last chunk of the message
+     */
+    public void onMessageChunk(Connection con, ByteBuffer chunk, boolean binary, boolean last);
+}
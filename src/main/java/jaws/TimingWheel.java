@@ -0,0 +1,157 @@
+package jaws;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TimingWheel.java
+ *
+ * A hashed timing wheel, used by a JaWS-object for keepalive pings and timeouts of all its connections.
+ * Time is split in ticks, and the wheel has a bucket for each tick of one round. A timeout is put in the bucket of the tick it expires in,
+ * with the number of whole rounds left, so scheduling and cancelling cost the same no matter how many timeouts there are.
+ * The price is precision: a timeout fires up to one tick late.
+ * <p>
+ * One thread turns the wheel, and runs the expired tasks. Tasks must be short, and hand anything that may block to another thread.
+ * The thread sleeps while there is nothing scheduled.
+ */
+class TimingWheel {
+
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // System.nanoTime()
+        private long rounds; // Only used by the wheel thread
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running, if it has not run yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayList<ArrayList<Timeout>> wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger scheduled = new AtomicInteger(0); // Timeouts added and not yet run or dropped
+    private final Thread thread;
+    private final long start;
+    private long tick = 0; // Only used by the wheel thread
+    private volatile boolean running = true;
+
+    /**
+     * @param tickMillis The length of a tick
+     * @param ticksPerWheel The number of buckets. Rounded up to a power of two.
+     * @param name The name of the thread
+     */
+    TimingWheel(long tickMillis, int ticksPerWheel, String name) {
+        this.tickNanos = tickMillis * 1000000L;
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = new ArrayList<ArrayList<Timeout>>(size);
+        for (int i=0; i<size; i++) {
+            wheel.add(new ArrayList<Timeout>());
+        }
+        this.start = System.nanoTime();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a task on the wheel thread after a delay.
+     * @param task The task
+     * @param delayMillis The delay
+     * @return A handle that can cancel the task
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout t = new Timeout(task, System.nanoTime() + delayMillis * 1000000L);
+        added.add(t);
+        if (scheduled.getAndIncrement() == 0) {
+            LockSupport.unpark(thread); // The wheel may be asleep
+        }
+        return t;
+    }
+
+    /**
+     * Stops the wheel. Tasks not yet run are dropped.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while(running) {
+            if (scheduled.get() == 0) {
+                LockSupport.park(this);
+                // Catch up on the ticks that passed while we slept, without looking in their buckets, as they are empty
+                tick = Math.max(tick, (System.nanoTime() - start) / tickNanos);
+                continue;
+            }
+
+            long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            transferAdded();
+            expire(wheel.get((int)(tick & mask)));
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout t;
+        while((t = added.poll()) != null) {
+            if (t.cancelled) {
+                scheduled.decrementAndGet();
+                continue;
+            }
+            // The bucket of a tick is expired when the tick ends, so it holds the deadlines up to that point
+            long due = Math.max(tick, (t.deadline - start - 1) / tickNanos);
+            t.rounds = (due - tick) / wheel.size();
+            wheel.get((int)(due & mask)).add(t);
+        }
+    }
+
+    private void expire(ArrayList<Timeout> bucket) {
+        int kept = 0;
+        for (int i=0; i<bucket.size(); i++) {
+            Timeout t = bucket.get(i);
+            if (t.cancelled) {
+                scheduled.decrementAndGet();
+            }
+            else if (t.rounds > 0) {
+                t.rounds--;
+                bucket.set(kept++, t);
+            }
+            else {
+                scheduled.decrementAndGet();
+                try {
+                    t.task.run();
+                }
+                catch(RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        // Drop the expired ones from the end
+        for (int i=bucket.size()-1; i>=kept; i--) {
+            bucket.remove(i);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package jaws;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Topics.java
+ *
+ * The subscriptions of a server: which connections want the messages published to each topic.
+ * <p>
+ * Every topic keeps its subscribers in a copy on write array, as messages are published far more often than clients subscribe.
+ * Publishing reads the array without taking any lock. Subscribing and unsubscribing copy it, under the lock the map holds for
+ * that topic only, so they never wait for a publish, and only wait for changes to the same topic.
+ * A topic is removed when its last subscriber leaves, so topics named after short lived things do not pile up.
+ * <p>
+ * Every connection also knows its own topics, so all its subscriptions are removed when it is closed.
+ */
+class Topics {
+
+    private static final Connection[] EMPTY = new Connection[0];
+
+    private final ConcurrentHashMap<String, Connection[]> topics = new ConcurrentHashMap<String, Connection[]>();
+
+    /**
+     * @param con The connection to subscribe
+     * @param topic The topic
+     * @return true if the connection was not already subscribed
+     */
+    boolean subscribe(Connection con, String topic) {
+        boolean[] added = new boolean[1];
+        // The connection's own set is changed under the same lock as the topic, so the two always agree
+        topics.compute(topic, (t, old) -> {
+            if (!con.topics.add(topic)) {
+                return old;
+            }
+            added[0] = true;
+            Connection[] subscribers = old != null ? old : EMPTY;
+            Connection[] next = Arrays.copyOf(subscribers, subscribers.length + 1);
+            next[subscribers.length] = con;
+            return next;
+        });
+        if (added[0] && con.isClosed()) {
+            // It may have been closed before the subscription was made, and then it would never be removed
+            unsubscribe(con, topic);
+        }
+        return added[0];
+    }
+
+    /**
+     * @param con The connection to unsubscribe
+     * @param topic The topic
+     * @return true if the connection was subscribed
+     */
+    boolean unsubscribe(Connection con, String topic) {
+        boolean[] removed = new boolean[1];
+        topics.computeIfPresent(topic, (t, old) -> {
+            if (!con.topics.remove(topic)) {
+                return old;
+            }
+            removed[0] = true;
+            for (int i=0; i<old.length; i++) {
+                if (old[i] == con) {
+                    if (old.length == 1) {
+                        return null;
+                    }
+                    // The last subscriber is moved into its place, order does not matter
+                    Connection[] next = Arrays.copyOf(old, old.length - 1);
+                    if (i < next.length) {
+                        next[i] = old[next.length];
+                    }
+                    return next;
+                }
+            }
+            return old;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Removes every subscription of a connection. Called when it is closed.
+     */
+    void unsubscribeAll(Connection con) {
+        for (String topic : con.topics) {
+            unsubscribe(con, topic);
+        }
+    }
+
+    /**
+     * @return The subscribers of a topic as they are now, never null. The array must not be modified.
+     */
+    Connection[] subscribers(String topic) {
+        Connection[] subscribers = topics.get(topic);
+        return subscribers != null ? subscribers : EMPTY;
+    }
+
+    /**
+     * @return The number of topics with at least one subscriber
+     */
+    int size() {
+        return topics.size();
+    }
+}
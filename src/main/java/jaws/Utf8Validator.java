@@ -0,0 +1,124 @@
+package jaws;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Utf8Validator.java
+ *
+ * Checks that the payload of a text message is valid UTF-8, as RFC 6455 8.1 requires, without decoding it.
+ * <p>
+ * The bytes are given as they arrive, a frame or a chunk at a time, and the state is kept between calls, so a character may
+ * be split between fragments. Invalid bytes are found in the frame they arrive in, and the message need not be complete.
+ * Overlong forms, surrogates and code points above U+10FFFF are invalid, as for a strict decoder.
+ * Runs of ASCII, the common case, are skipped eight bytes at a time, with one load for each.
+ * <p>
+ * Used by the thread reading a connection only.
+ */
+class Utf8Validator {
+
+    private int needed = 0; // Continuation bytes still expected for the current character
+    private int lower = 0x80; // The range the next continuation byte must be in
+    private int upper = 0xBF;
+    private boolean failed = false;
+
+    /**
+     * Starts a new message.
+     */
+    void reset() {
+        needed = 0;
+        lower = 0x80;
+        upper = 0xBF;
+        failed = false;
+    }
+
+    /**
+     * Checks the next bytes of the message.
+     * @param bytes The array holding the bytes
+     * @param offset The first byte to check
+     * @param length The number of bytes to check
+     * @return false if the message is not valid UTF-8. It stays invalid until reset.
+     */
+    boolean update(byte[] bytes, int offset, int length) {
+        if (failed) {
+            return false;
+        }
+        int i = offset;
+        int end = offset + length;
+        while(i < end) {
+            int c = bytes[i++] & 0xFF;
+            if (needed == 0) {
+                if (c < 0x80) {
+                    i = skipAscii(bytes, i, end);
+                    continue;
+                }
+                if (c >= 0xC2 && c <= 0xDF) {
+                    needed = 1;
+                }
+                else if (c >= 0xE0 && c <= 0xEF) {
+                    needed = 2;
+                    if (c == 0xE0) {
+                        lower = 0xA0; // Overlong
+                    }
+                    else if (c == 0xED) {
+                        upper = 0x9F; // Surrogates
+                    }
+                }
+                else if (c >= 0xF0 && c <= 0xF4) {
+                    needed = 3;
+                    if (c == 0xF0) {
+                        lower = 0x90; // Overlong
+                    }
+                    else if (c == 0xF4) {
+                        upper = 0x8F; // Above U+10FFFF
+                    }
+                }
+                else {
+                    failed = true;
+                    return false;
+                }
+            }
+            else {
+                if (c < lower || c > upper) {
+                    failed = true;
+                    return false;
+                }
+                lower = 0x80;
+                upper = 0xBF;
+                needed--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The index of the first byte from i that is not ASCII, or end
+     */
+    private static int skipAscii(byte[] bytes, int i, int end) {
+        if (end - i >= 8) {
+            ByteBuffer words = ByteBuffer.wrap(bytes);
+            while(i + 8 <= end && (words.getLong(i) & 0x8080808080808080L) == 0) {
+                i += 8;
+            }
+        }
+        while(i < end && bytes[i] >= 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return true if the bytes so far are valid, and do not end in the middle of a character
+     */
+    boolean isComplete() {
+        return !failed && needed == 0;
+    }
+
+    /**
+     * Checks a whole message.
+     * @return true if the bytes are valid UTF-8
+     */
+    static boolean isValid(byte[] bytes) {
+        Utf8Validator v = new Utf8Validator();
+        return v.update(bytes, 0, bytes.length) && v.isComplete();
+    }
+}
@@ -1,9 +1,15 @@
 package jaws;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * WebSocketEventHandler.java
  *
  * To recieve messages from and about clients connected, you must implement this interface, and register the handler with the JaWS-object
+ * <p>
+ * Calls are made on the event executor of the JaWS-object. Calls about one connection are made one at a time, in the order the events happened,
+ * but calls about different connections may be made at the same time from different threads.
  */
 public interface WebSocketEventHandler {
     /**
@@ -19,6 +25,34 @@ public interface WebSocketEventHandler {
      */
     public void onMessage(Connection con, String message);
 
+    /**
+     * Called when the Connection has recieved a text message from the client, before it is decoded.
+     * The bytes are known to be valid UTF-8, as a connection sending anything else is closed with status 1007.
+     * Handlers that pass messages on, with Connection.sendText() or JaWS.broadcastText(), can override this to never decode them.
+     * The buffer wraps the recieved payload directly, and belongs to the handler.
+     * The default implementation decodes the message, and calls onMessage().
+     * @param con The connection the message came from
+     * @param message The message as UTF-8, between position and limit
+     */
+    default void onTextMessage(Connection con, ByteBuffer message) {
+        if (message.hasArray()) {
+            onMessage(con, new String(message.array(), message.arrayOffset() + message.position(), message.remaining(), StandardCharsets.UTF_8));
+        }
+        else {
+            onMessage(con, StandardCharsets.UTF_8.decode(message.duplicate()).toString());
+        }
+    }
+
+    /**
+     * Called when the Connection has recieved a binary message from the client.
+     * The buffer wraps the recieved payload directly, without copying or decoding. It belongs to the handler, and is not touched by JaWS after the call.
+     * The default implementation ignores the message.
+     * @param con The connection the message came from
+     * @param message The message that was recieved, between position and limit
+     */
+    default void onBinaryMessage(Connection con, ByteBuffer message) {
+    }
+
     /**
      * Called when a client is disconnected.
      * Note that you should NOT call send on this object now, or later. However, the broadcast-method on the JaWS-object is
@@ -27,6 +61,16 @@ public interface WebSocketEventHandler {
      */
     public void onDisconnect(Connection con);
 
+    /**
+     * Called when the bytes waiting to be written to a client reach the high watermark, and again when they are drained to the low watermark.
+     * Use it to stop producing messages for a slow client, instead of relying on the backpressure policy.
+     * The default implementation does nothing.
+     * @param con The connection
+     * @param writable false when the connection has too much queued, true when it can take more
+     */
+    default void onWritabilityChanged(Connection con, boolean writable) {
+    }
+
     /**
      * Called when a connection recieves a PONG frame.
      * @param con The connection that recieved the PONG frame
@@ -0,0 +1,54 @@
+package jaws;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * ReaderChannelTest.java
+ *
+ * Text streamed from a Reader must come out as the same UTF-8, in full buffers, however the characters line up with them.
+ */
+public class ReaderChannelTest {
+
+    @Test
+    public void characterCrossingTheEndOfTheBuffer() throws IOException {
+        ReaderChannel channel = new ReaderChannel(new StringReader("aaaaaaa\u20ac"));
+        ByteBuffer buffer = ByteBuffer.allocate(9);
+        assertEquals(9, channel.read(buffer)); // Seven a's and the first two bytes of the euro sign
+        buffer.clear();
+        assertEquals(1, channel.read(buffer));
+        buffer.clear();
+        assertEquals(-1, channel.read(buffer));
+    }
+
+    @Test
+    public void everyChunkSize() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<2000; i++) {
+            sb.append("a\u00e9\u20ac\ud83d\ude00"); // One, two, three and four bytes
+        }
+        String text = sb.toString();
+        byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+
+        for (int chunkSize=1; chunkSize<=17; chunkSize++) {
+            ReaderChannel channel = new ReaderChannel(new StringReader(text));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+            int n;
+            while((n = channel.read(buffer)) >= 0) {
+                assertEquals("Only the last read may leave room", out.size() + chunkSize < expected.length ? chunkSize : n, n);
+                out.write(buffer.array(), 0, n);
+                buffer.clear();
+            }
+            assertArrayEquals("Chunk size "+chunkSize, expected, out.toByteArray());
+        }
+    }
+}